@@ -0,0 +1,168 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Searches for many byte patterns at once in a single pass over the input. The automaton is compiled into a dense
+ * transition table of 256 entries per state, so matching does one array lookup per input byte. An instance is immutable
+ * and may be shared between threads.
+ */
+public class AhoCorasick {
+
+    /**
+     * Receives the matches found by a search.
+     */
+    public interface Listener {
+
+        /**
+         * @param pattern the index of the pattern that matched
+         * @param start the absolute position of the first byte of the match
+         * @param end the absolute position following the last byte of the match
+         */
+        void match(int pattern, int start, int end);
+
+    }
+
+    private final int[] transitions; // state * 256 + byte -> state
+    private final int[] output; // first pattern ending at a state, or -1
+    private final int[] dictionaryLink; // nearest proper suffix state that has output, or -1
+    private final int[] samePattern; // next pattern identical to a pattern, or -1
+    private final int[] patternLengths;
+
+    /**
+     * @param patterns the patterns to search for; a match is reported by its index in this array
+     * @throws IllegalArgumentException if a pattern is empty
+     */
+    public AhoCorasick(byte[][] patterns) {
+        int maximumStates = 1;
+        for (byte[] pattern : patterns) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("empty pattern");
+            }
+
+            maximumStates += pattern.length;
+        }
+
+        int[] transitions = new int[maximumStates * 256];
+        Arrays.fill(transitions, -1);
+        int[] output = new int[maximumStates];
+        Arrays.fill(output, -1);
+        samePattern = new int[patterns.length];
+        Arrays.fill(samePattern, -1);
+        patternLengths = new int[patterns.length];
+
+        int states = 1;
+        for (int p = 0; p < patterns.length; p++) {
+            int state = 0;
+            for (byte b : patterns[p]) {
+                final int t = state * 256 + (b & 0xff);
+                if (transitions[t] < 0) {
+                    transitions[t] = states++;
+                }
+
+                state = transitions[t];
+            }
+
+            samePattern[p] = output[state];
+            output[state] = p;
+            patternLengths[p] = patterns[p].length;
+        }
+
+        transitions = Arrays.copyOf(transitions, states * 256);
+        this.output = Arrays.copyOf(output, states);
+        this.dictionaryLink = new int[states];
+        final int[] failure = new int[states];
+        final int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        dictionaryLink[0] = -1;
+        for (int b = 0; b < 256; b++) {
+            final int s = transitions[b];
+            if (s < 0) {
+                transitions[b] = 0;
+            } else {
+                failure[s] = 0;
+                queue[tail++] = s;
+            }
+        }
+
+        while (head < tail) {
+            final int r = queue[head++];
+            final int f = failure[r];
+            dictionaryLink[r] = this.output[f] >= 0 ? f : dictionaryLink[f];
+            for (int b = 0; b < 256; b++) {
+                final int s = transitions[r * 256 + b];
+                if (s < 0) {
+                    transitions[r * 256 + b] = transitions[f * 256 + b];
+                } else {
+                    failure[s] = transitions[f * 256 + b];
+                    queue[tail++] = s;
+                }
+            }
+        }
+
+        this.transitions = transitions;
+    }
+
+    /**
+     * Creates a matcher for the UTF-8 encodings of some strings.
+     *
+     * @param patterns the strings to search for
+     * @return the matcher
+     */
+    public static AhoCorasick of(String... patterns) {
+        byte[][] bytes = new byte[patterns.length][];
+        for (int p = 0; p < patterns.length; p++) {
+            bytes[p] = patterns[p].getBytes(StandardCharsets.UTF_8);
+        }
+
+        return new AhoCorasick(bytes);
+    }
+
+    /**
+     * Searches a region of a buffer, reporting every occurrence of every pattern, including overlapping ones. The position
+     * of the buffer is not used or changed.
+     *
+     * @param buffer the buffer to search
+     * @param offset the absolute position of the region
+     * @param length the length of the region
+     * @param listener receives the matches in order of their end position
+     * @return the number of matches
+     */
+    public int match(ByteBuffer buffer, int offset, int length, Listener listener) {
+        int matches = 0;
+        int state = 0;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            state = transitions[state * 256 + (buffer.get(i) & 0xff)];
+            for (int s = output[state] >= 0 ? state : dictionaryLink[state]; s >= 0; s = dictionaryLink[s]) {
+                for (int p = output[s]; p >= 0; p = samePattern[p]) {
+                    listener.match(p, i + 1 - patternLengths[p], i + 1);
+                    matches++;
+                }
+            }
+        }
+
+        return matches;
+    }
+
+}
@@ -20,6 +20,10 @@ package com.stackframe.executable;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -30,4 +34,29 @@ public interface BinaryFormat {
 
     BinaryObject load(RandomAccessFile file) throws IOException, InvalidObjectException;
 
+    /**
+     * Loads a binary without blocking the calling thread. The header and load commands are read with asynchronous
+     * positional reads, and the file is then mapped; the rest of its contents are only paged in when they are accessed.
+     * Cancelling the returned future closes the file and abandons any pending read. The file is opened once for reading and
+     * once for mapping; if the path is replaced between the two, the load fails with an InvalidObjectException rather than
+     * mixing the two files.
+     *
+     * @param path the file to load
+     * @param executor runs the parsing of the load commands; the reads are done by the default asynchronous channel group, so
+     * a slow file does not hold the executor's threads
+     * @return the loaded binary, completed exceptionally with an IOException if it cannot be read or is malformed
+     */
+    CompletableFuture<BinaryObject> loadAsync(Path path, Executor executor);
+
+    /**
+     * Loads a binary without blocking the calling thread, giving up after a timeout.
+     *
+     * @param path the file to load
+     * @param executor runs the parsing of the load commands
+     * @param timeout how long to wait for the load
+     * @param unit the unit of timeout
+     * @return the loaded binary, completed exceptionally with a TimeoutException if it has not loaded in time
+     */
+    CompletableFuture<BinaryObject> loadAsync(Path path, Executor executor, long timeout, TimeUnit unit);
+
 }
@@ -17,6 +17,7 @@
 
 package com.stackframe.executable;
 
+import java.io.InvalidObjectException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.Collection;
@@ -31,7 +32,49 @@ public interface BinaryObject {
     void disassemble(PrintWriter writer);
     
     Collection<String> symbols();
+
+    /**
+     * Walks the symbol table in place, without creating a String for each name.
+     *
+     * @param visitor receives each symbol table entry
+     */
+    void symbols(SymbolVisitor visitor);
+
+    /**
+     * @return the install names of the libraries the binary depends on, in load command order
+     */
+    Collection<String> dependencies();
     
     ByteBuffer getSymbol(String symbol);
 
+    /**
+     * Returns a view of the contents of a section, without copying it out of the underlying file.
+     *
+     * @param segname the name of the segment containing the section
+     * @param sectname the name of the section
+     * @return a read-only view of the section in the byte order of the file, or null if there is no such section or it has no
+     * contents within the file range of its segment
+     * @throws InvalidObjectException if the section extends past the end of the file
+     */
+    ByteBuffer getSection(String segname, String sectname) throws InvalidObjectException;
+
+    /**
+     * Walks the string literals embedded in the binary in place, without copying them.
+     *
+     * @param visitor receives each string
+     * @throws InvalidObjectException if a string section extends past the end of the file
+     */
+    void strings(StringVisitor visitor) throws InvalidObjectException;
+
+    /**
+     * Compares this binary, as the old version, with a new version of it. Segments whose size and content hash are the same
+     * in both are skipped without comparing their sections.
+     *
+     * @param other the new version
+     * @param listener receives the differences
+     * @throws IllegalArgumentException if the other binary is of a different format
+     * @throws InvalidObjectException if a section of either binary extends past the end of its file
+     */
+    void diff(BinaryObject other, DiffListener listener) throws InvalidObjectException;
+
 }
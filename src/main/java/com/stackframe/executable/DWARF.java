@@ -0,0 +1,1130 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index from addresses to source lines built from the DWARF sections of a binary, such as a dSYM companion file.
+ *
+ * Only the compile unit headers in __debug_info are read when the index is loaded. The line program of a compile unit in
+ * __debug_line is decoded the first time a lookup lands in that unit, so a lookup only pays for the units it hits.
+ */
+public class DWARF {
+
+    private static final String SEGMENT = "__DWARF";
+
+    private static final int DW_TAG_compile_unit = 0x11;
+    private static final int DW_TAG_partial_unit = 0x3c;
+    private static final int DW_TAG_skeleton_unit = 0x4a;
+
+    private static final int DW_AT_stmt_list = 0x10;
+    private static final int DW_AT_low_pc = 0x11;
+    private static final int DW_AT_high_pc = 0x12;
+    private static final int DW_AT_comp_dir = 0x1b;
+    private static final int DW_AT_ranges = 0x55;
+
+    private static final int DW_FORM_addr = 0x01;
+    private static final int DW_FORM_block2 = 0x03;
+    private static final int DW_FORM_block4 = 0x04;
+    private static final int DW_FORM_data2 = 0x05;
+    private static final int DW_FORM_data4 = 0x06;
+    private static final int DW_FORM_data8 = 0x07;
+    private static final int DW_FORM_string = 0x08;
+    private static final int DW_FORM_block = 0x09;
+    private static final int DW_FORM_block1 = 0x0a;
+    private static final int DW_FORM_data1 = 0x0b;
+    private static final int DW_FORM_flag = 0x0c;
+    private static final int DW_FORM_sdata = 0x0d;
+    private static final int DW_FORM_strp = 0x0e;
+    private static final int DW_FORM_udata = 0x0f;
+    private static final int DW_FORM_ref_addr = 0x10;
+    private static final int DW_FORM_ref1 = 0x11;
+    private static final int DW_FORM_ref2 = 0x12;
+    private static final int DW_FORM_ref4 = 0x13;
+    private static final int DW_FORM_ref8 = 0x14;
+    private static final int DW_FORM_ref_udata = 0x15;
+    private static final int DW_FORM_indirect = 0x16;
+    private static final int DW_FORM_sec_offset = 0x17;
+    private static final int DW_FORM_exprloc = 0x18;
+    private static final int DW_FORM_flag_present = 0x19;
+    private static final int DW_FORM_strx = 0x1a;
+    private static final int DW_FORM_addrx = 0x1b;
+    private static final int DW_FORM_ref_sup4 = 0x1c;
+    private static final int DW_FORM_strp_sup = 0x1d;
+    private static final int DW_FORM_data16 = 0x1e;
+    private static final int DW_FORM_line_strp = 0x1f;
+    private static final int DW_FORM_ref_sig8 = 0x20;
+    private static final int DW_FORM_implicit_const = 0x21;
+    private static final int DW_FORM_loclistx = 0x22;
+    private static final int DW_FORM_rnglistx = 0x23;
+    private static final int DW_FORM_ref_sup8 = 0x24;
+    private static final int DW_FORM_strx1 = 0x25;
+    private static final int DW_FORM_strx2 = 0x26;
+    private static final int DW_FORM_strx3 = 0x27;
+    private static final int DW_FORM_strx4 = 0x28;
+    private static final int DW_FORM_addrx1 = 0x29;
+    private static final int DW_FORM_addrx2 = 0x2a;
+    private static final int DW_FORM_addrx3 = 0x2b;
+    private static final int DW_FORM_addrx4 = 0x2c;
+
+    private static final int DW_UT_type = 0x02;
+    private static final int DW_UT_skeleton = 0x04;
+    private static final int DW_UT_split_compile = 0x05;
+    private static final int DW_UT_split_type = 0x06;
+
+    private static final int DW_RLE_end_of_list = 0x00;
+    private static final int DW_RLE_base_addressx = 0x01;
+    private static final int DW_RLE_startx_endx = 0x02;
+    private static final int DW_RLE_startx_length = 0x03;
+    private static final int DW_RLE_offset_pair = 0x04;
+    private static final int DW_RLE_base_address = 0x05;
+    private static final int DW_RLE_start_end = 0x06;
+    private static final int DW_RLE_start_length = 0x07;
+
+    private static final int DW_LNS_copy = 0x01;
+    private static final int DW_LNS_advance_pc = 0x02;
+    private static final int DW_LNS_advance_line = 0x03;
+    private static final int DW_LNS_set_file = 0x04;
+    private static final int DW_LNS_set_column = 0x05;
+    private static final int DW_LNS_negate_stmt = 0x06;
+    private static final int DW_LNS_set_basic_block = 0x07;
+    private static final int DW_LNS_const_add_pc = 0x08;
+    private static final int DW_LNS_fixed_advance_pc = 0x09;
+    private static final int DW_LNS_set_prologue_end = 0x0a;
+    private static final int DW_LNS_set_epilogue_begin = 0x0b;
+    private static final int DW_LNS_set_isa = 0x0c;
+
+    private static final int DW_LNE_end_sequence = 0x01;
+    private static final int DW_LNE_set_address = 0x02;
+    private static final int DW_LNE_define_file = 0x03;
+
+    private static final int DW_LNCT_path = 0x1;
+    private static final int DW_LNCT_directory_index = 0x2;
+
+    /**
+     * A source file and line number.
+     */
+    public static class SourceLocation {
+
+        public final String file;
+        public final int line;
+
+        public SourceLocation(String file, int line) {
+            this.file = file;
+            this.line = line;
+        }
+
+        @Override
+        public String toString() {
+            return file + ":" + line;
+        }
+
+    }
+
+    private final ByteBuffer line;
+    private final ByteBuffer str;
+    private final ByteBuffer lineStr;
+
+    // Address ranges covered by compile units, sorted by start address.
+    private final long[] rangeLow;
+    private final long[] rangeHigh;
+    private final int[] rangeUnit;
+
+    // Per compile unit.
+    private final long[] unitStmtList;
+    private final String[] unitCompDir;
+    private final LineTable[] tables;
+
+    private DWARF(ByteBuffer info, ByteBuffer abbrev, ByteBuffer line, ByteBuffer str, ByteBuffer lineStr, ByteBuffer ranges,
+                  ByteBuffer rnglists) throws InvalidObjectException {
+        this.line = line;
+        this.str = str;
+        this.lineStr = lineStr;
+
+        List<Long> stmtLists = new ArrayList<>();
+        List<String> compDirs = new ArrayList<>();
+        List<long[]> unitRanges = new ArrayList<>();
+        List<Integer> unranged = new ArrayList<>();
+        Cursor c = new Cursor(info, 0);
+        try {
+            while (c.position < info.limit()) {
+                final Header h = new Header(c);
+                if (h.length < 0 || h.length > info.limit() - c.position) {
+                    throw new InvalidObjectException("invalid unit length in __debug_info at offset " + c.position);
+                }
+
+                final int next = c.position + (int)h.length;
+                final CompileUnit u = readCompileUnit(c, h, abbrev);
+                c.position = next;
+                if (u == null || u.stmtList < 0) {
+                    continue;
+                }
+
+                final int unit = stmtLists.size();
+                stmtLists.add(u.stmtList);
+                compDirs.add(u.compDir);
+                final int count = unitRanges.size();
+                if (u.ranges >= 0) {
+                    if (!readRanges(u, h, ranges, rnglists, unit, unitRanges)) {
+                        while (unitRanges.size() > count) {
+                            unitRanges.remove(unitRanges.size() - 1);
+                        }
+                    }
+                } else if (u.lowPc >= 0 && u.highPc >= 0) {
+                    final long high = u.highPcIsOffset ? u.lowPc + u.highPc : u.highPc;
+                    unitRanges.add(new long[]{u.lowPc, high, unit});
+                }
+
+                if (unitRanges.size() == count) {
+                    unranged.add(unit);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new InvalidObjectException("truncated __debug_info at offset " + c.position);
+        }
+
+        final int units = stmtLists.size();
+        this.unitStmtList = new long[units];
+        this.unitCompDir = compDirs.toArray(new String[units]);
+        this.tables = new LineTable[units];
+        for (int u = 0; u < units; u++) {
+            unitStmtList[u] = stmtLists.get(u);
+        }
+
+        // A unit whose extent cannot be determined from __debug_info is decoded up front and indexed by its line sequences.
+        for (int unit : unranged) {
+            final LineTable t = table(unit);
+            for (int s = 0; s < t.sequenceStarts.length; s++) {
+                final int end = s + 1 < t.sequenceStarts.length ? t.sequenceStarts[s + 1] : t.addresses.length;
+                unitRanges.add(new long[]{t.addresses[t.sequenceStarts[s]], t.addresses[end - 1], unit});
+            }
+        }
+
+        Collections.sort(unitRanges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compareUnsigned(a[0], b[0]);
+            }
+        });
+        int n = 0;
+        for (long[] r : unitRanges) {
+            if (Long.compareUnsigned(r[0], r[1]) < 0) {
+                n++;
+            }
+        }
+
+        this.rangeLow = new long[n];
+        this.rangeHigh = new long[n];
+        this.rangeUnit = new int[n];
+        int x = 0;
+        for (long[] r : unitRanges) {
+            if (Long.compareUnsigned(r[0], r[1]) < 0) {
+                rangeLow[x] = r[0];
+                rangeHigh[x] = r[1];
+                rangeUnit[x] = (int)r[2];
+                x++;
+            }
+        }
+    }
+
+    /**
+     * Builds an index over the DWARF sections of a binary.
+     *
+     * @param o the binary
+     * @return the index, or null if the binary does not contain line number information
+     * @throws InvalidObjectException if the DWARF sections are malformed
+     */
+    public static DWARF load(BinaryObject o) throws InvalidObjectException {
+        final ByteBuffer info = o.getSection(SEGMENT, "__debug_info");
+        final ByteBuffer abbrev = o.getSection(SEGMENT, "__debug_abbrev");
+        final ByteBuffer line = o.getSection(SEGMENT, "__debug_line");
+        if (info == null || abbrev == null || line == null) {
+            return null;
+        }
+
+        return new DWARF(info, abbrev, line, o.getSection(SEGMENT, "__debug_str"), o.getSection(SEGMENT, "__debug_line_str"),
+                         o.getSection(SEGMENT, "__debug_ranges"), o.getSection(SEGMENT, "__debug_rnglists"));
+    }
+
+    /**
+     * @return the number of compile units that have line number information
+     */
+    public int compileUnits() {
+        return tables.length;
+    }
+
+    /**
+     * Looks up the source location of an address.
+     *
+     * @param address the address
+     * @return the source location, or null if the address is not covered by the line tables
+     * @throws InvalidObjectException if the line table of the compile unit containing the address is malformed
+     */
+    public SourceLocation lookup(long address) throws InvalidObjectException {
+        final int r = findRange(address);
+        if (r < 0) {
+            return null;
+        }
+
+        final LineTable t = table(rangeUnit[r]);
+        final int row = t.find(address);
+        if (row < 0) {
+            return null;
+        }
+
+        return new SourceLocation(t.fileNames[t.files[row]], t.lines[row]);
+    }
+
+    /**
+     * Looks up the source locations of a batch of addresses. Runs of addresses that fall in the same compile unit, as is
+     * typical of the frames of a sorted or symbolicated backtrace, skip the search for the unit.
+     *
+     * @param addresses the addresses
+     * @param files receives the source file of each address, or null if it is not covered by the line tables
+     * @param lines receives the line number of each address, or 0 if it is not covered by the line tables
+     * @return the number of addresses that were found
+     * @throws InvalidObjectException if the line table of a compile unit containing one of the addresses is malformed
+     */
+    public int lookup(long[] addresses, String[] files, int[] lines) throws InvalidObjectException {
+        int found = 0;
+        int r = -1;
+        LineTable t = null;
+        for (int x = 0; x < addresses.length; x++) {
+            final long address = addresses[x];
+            if (r < 0 || Long.compareUnsigned(address, rangeLow[r]) < 0 || Long.compareUnsigned(address, rangeHigh[r]) >= 0) {
+                r = findRange(address);
+                t = r < 0 ? null : table(rangeUnit[r]);
+            }
+
+            final int row = t == null ? -1 : t.find(address);
+            if (row < 0) {
+                files[x] = null;
+                lines[x] = 0;
+            } else {
+                files[x] = t.fileNames[t.files[row]];
+                lines[x] = t.lines[row];
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    private int findRange(long address) {
+        int low = 0;
+        int high = rangeLow.length - 1;
+        int result = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(rangeLow[mid], address) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (result >= 0 && Long.compareUnsigned(address, rangeHigh[result]) < 0) {
+            return result;
+        }
+
+        return -1;
+    }
+
+    private synchronized LineTable table(int unit) throws InvalidObjectException {
+        LineTable t = tables[unit];
+        if (t == null) {
+            try {
+                t = new LineTable(this, new Cursor(line, unitStmtList[unit]), unitCompDir[unit]);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new InvalidObjectException("truncated __debug_line at offset " + unitStmtList[unit]);
+            }
+
+            tables[unit] = t;
+        }
+
+        return t;
+    }
+
+    /**
+     * A position in a section. Reads are absolute so that several cursors may share a buffer.
+     */
+    private static class Cursor {
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        /**
+         * @throws IndexOutOfBoundsException if the position is outside the buffer, as when an offset is corrupt
+         */
+        Cursor(ByteBuffer buffer, long position) {
+            if (position < 0 || position > buffer.limit()) {
+                throw new IndexOutOfBoundsException("offset " + position + " outside section of " + buffer.limit() + " bytes");
+            }
+
+            this.buffer = buffer;
+            this.position = (int)position;
+        }
+
+        int u8() {
+            return buffer.get(position++) & 0xff;
+        }
+
+        int u16() {
+            final int v = buffer.getShort(position) & 0xffff;
+            position += 2;
+            return v;
+        }
+
+        long u32() {
+            final long v = buffer.getInt(position) & 0xffffffffL;
+            position += 4;
+            return v;
+        }
+
+        long u64() {
+            final long v = buffer.getLong(position);
+            position += 8;
+            return v;
+        }
+
+        long unsigned(int size) {
+            switch (size) {
+                case 1:
+                    return u8();
+                case 2:
+                    return u16();
+                case 4:
+                    return u32();
+                case 8:
+                    return u64();
+                default:
+                    throw new IndexOutOfBoundsException("unsupported size " + size);
+            }
+        }
+
+        long uleb() {
+            long result = 0;
+            int shift = 0;
+            while (true) {
+                final int b = u8();
+                if (shift < 64) {
+                    result |= (long)(b & 0x7f) << shift;
+                }
+
+                shift += 7;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        long sleb() {
+            long result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = u8();
+                if (shift < 64) {
+                    result |= (long)(b & 0x7f) << shift;
+                }
+
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (shift < 64 && (b & 0x40) != 0) {
+                result |= -1L << shift;
+            }
+
+            return result;
+        }
+
+        String cstring() {
+            final int start = position;
+            while (buffer.get(position) != 0) {
+                position++;
+            }
+
+            final byte[] bytes = new byte[position - start];
+            for (int x = 0; x < bytes.length; x++) {
+                bytes[x] = buffer.get(start + x);
+            }
+
+            position++;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @throws IndexOutOfBoundsException if n is negative or runs past the end of the buffer, so that a corrupt length
+         * can never move the cursor backwards
+         */
+        void skip(long n) {
+            if (n < 0 || n > buffer.limit() - position) {
+                throw new IndexOutOfBoundsException("skip of " + n + " bytes at offset " + position);
+            }
+
+            position += (int)n;
+        }
+
+    }
+
+    private static String readString(ByteBuffer buffer, long offset) {
+        if (buffer == null) {
+            return null;
+        }
+
+        return new Cursor(buffer, offset).cstring();
+    }
+
+    /**
+     * The header of a unit in __debug_info or __debug_line, up to and including the version.
+     */
+    private static class Header {
+
+        private final long length;
+        private final int offsetSize;
+        private final int version;
+
+        Header(Cursor c) {
+            final long initial = c.u32();
+            if (initial == 0xffffffffL) {
+                length = c.u64() - 2;
+                offsetSize = 8;
+            } else {
+                length = initial - 2;
+                offsetSize = 4;
+            }
+
+            version = c.u16();
+        }
+
+    }
+
+    private static class CompileUnit {
+
+        private int version;
+        private int addressSize;
+        private int offsetSize;
+        private long stmtList = -1;
+        private long lowPc = -1;
+        private long highPc = -1;
+        private boolean highPcIsOffset;
+        private long ranges = -1;
+        private String compDir;
+
+    }
+
+    private CompileUnit readCompileUnit(Cursor c, Header h, ByteBuffer abbrev) throws InvalidObjectException {
+        if (h.version < 2 || h.version > 5) {
+            return null;
+        }
+
+        final CompileUnit u = new CompileUnit();
+        u.version = h.version;
+        u.offsetSize = h.offsetSize;
+        final long abbrevOffset;
+        if (h.version >= 5) {
+            final int unitType = c.u8();
+            u.addressSize = c.u8();
+            abbrevOffset = c.unsigned(h.offsetSize);
+            if (unitType == DW_UT_type || unitType == DW_UT_split_type) {
+                return null;
+            } else if (unitType == DW_UT_skeleton || unitType == DW_UT_split_compile) {
+                c.skip(8);
+            }
+        } else {
+            abbrevOffset = c.unsigned(h.offsetSize);
+            u.addressSize = c.u8();
+        }
+
+        final long code = c.uleb();
+        if (code == 0) {
+            return null;
+        }
+
+        // Find the abbreviation of the unit DIE, which is almost always the first one in the table.
+        final Cursor a = new Cursor(abbrev, abbrevOffset);
+        while (true) {
+            final long entry = a.uleb();
+            if (entry == 0) {
+                throw new InvalidObjectException("missing abbreviation " + code + " at offset " + abbrevOffset);
+            }
+
+            final long tag = a.uleb();
+            a.u8();
+            if (entry == code) {
+                if (tag != DW_TAG_compile_unit && tag != DW_TAG_partial_unit && tag != DW_TAG_skeleton_unit) {
+                    return null;
+                }
+
+                break;
+            }
+
+            while (true) {
+                final long attribute = a.uleb();
+                final long form = a.uleb();
+                if (form == DW_FORM_implicit_const) {
+                    a.sleb();
+                }
+
+                if (attribute == 0 && form == 0) {
+                    break;
+                }
+            }
+        }
+
+        while (true) {
+            final int attribute = (int)a.uleb();
+            int form = (int)a.uleb();
+            final long implicitConst = form == DW_FORM_implicit_const ? a.sleb() : 0;
+            if (attribute == 0 && form == 0) {
+                break;
+            }
+
+            while (form == DW_FORM_indirect) {
+                form = (int)c.uleb();
+            }
+
+            switch (attribute) {
+                case DW_AT_stmt_list:
+                    u.stmtList = readForm(c, form, u, implicitConst);
+                    break;
+                case DW_AT_low_pc:
+                    u.lowPc = form == DW_FORM_addr ? readForm(c, form, u, implicitConst) : skipForm(c, form, u);
+                    break;
+                case DW_AT_high_pc:
+                    u.highPcIsOffset = form != DW_FORM_addr;
+                    u.highPc = isConstant(form) || form == DW_FORM_addr ? readForm(c, form, u, implicitConst) : skipForm(c, form, u);
+                    break;
+                case DW_AT_ranges:
+                    u.ranges = form == DW_FORM_rnglistx ? skipForm(c, form, u) : readForm(c, form, u, implicitConst);
+                    break;
+                case DW_AT_comp_dir:
+                    u.compDir = readStringForm(c, form, u.offsetSize, u);
+                    break;
+                default:
+                    readForm(c, form, u, implicitConst);
+                    break;
+            }
+        }
+
+        return u;
+    }
+
+    private static boolean isConstant(int form) {
+        return form == DW_FORM_data1 || form == DW_FORM_data2 || form == DW_FORM_data4 || form == DW_FORM_data8 ||
+               form == DW_FORM_udata || form == DW_FORM_sdata || form == DW_FORM_implicit_const;
+    }
+
+    private static long skipForm(Cursor c, int form, CompileUnit u) {
+        readForm(c, form, u, 0);
+        return -1;
+    }
+
+    /**
+     * Reads an attribute value. Values of string, block and expression forms are skipped, and 0 is returned for them.
+     */
+    private static long readForm(Cursor c, int form, CompileUnit u, long implicitConst) {
+        switch (form) {
+            case DW_FORM_addr:
+                return c.unsigned(u.addressSize);
+            case DW_FORM_data1:
+            case DW_FORM_ref1:
+            case DW_FORM_flag:
+            case DW_FORM_strx1:
+            case DW_FORM_addrx1:
+                return c.u8();
+            case DW_FORM_data2:
+            case DW_FORM_ref2:
+            case DW_FORM_strx2:
+            case DW_FORM_addrx2:
+                return c.u16();
+            case DW_FORM_strx3:
+            case DW_FORM_addrx3:
+                return c.u16() | (long)c.u8() << 16;
+            case DW_FORM_data4:
+            case DW_FORM_ref4:
+            case DW_FORM_ref_sup4:
+            case DW_FORM_strx4:
+            case DW_FORM_addrx4:
+                return c.u32();
+            case DW_FORM_data8:
+            case DW_FORM_ref8:
+            case DW_FORM_ref_sig8:
+            case DW_FORM_ref_sup8:
+                return c.u64();
+            case DW_FORM_data16:
+                c.skip(16);
+                return 0;
+            case DW_FORM_sdata:
+                return c.sleb();
+            case DW_FORM_udata:
+            case DW_FORM_ref_udata:
+            case DW_FORM_strx:
+            case DW_FORM_addrx:
+            case DW_FORM_loclistx:
+            case DW_FORM_rnglistx:
+                return c.uleb();
+            case DW_FORM_strp:
+            case DW_FORM_line_strp:
+            case DW_FORM_strp_sup:
+            case DW_FORM_sec_offset:
+                return c.unsigned(u.offsetSize);
+            case DW_FORM_ref_addr:
+                return c.unsigned(u.version <= 2 ? u.addressSize : u.offsetSize);
+            case DW_FORM_string:
+                while (c.u8() != 0) {
+                }
+
+                return 0;
+            case DW_FORM_block1:
+                c.skip(c.u8());
+                return 0;
+            case DW_FORM_block2:
+                c.skip(c.u16());
+                return 0;
+            case DW_FORM_block4:
+                c.skip(c.u32());
+                return 0;
+            case DW_FORM_block:
+            case DW_FORM_exprloc:
+                c.skip(c.uleb());
+                return 0;
+            case DW_FORM_flag_present:
+                return 1;
+            case DW_FORM_implicit_const:
+                return implicitConst;
+            case DW_FORM_indirect:
+                return readForm(c, (int)c.uleb(), u, implicitConst);
+            default:
+                throw new IndexOutOfBoundsException("unsupported form " + form);
+        }
+    }
+
+    private String readStringForm(Cursor c, int form, int offsetSize, CompileUnit u) {
+        switch (form) {
+            case DW_FORM_string:
+                return c.cstring();
+            case DW_FORM_strp:
+                return readString(str, c.unsigned(offsetSize));
+            case DW_FORM_line_strp:
+                return readString(lineStr, c.unsigned(offsetSize));
+            default:
+                readForm(c, form, u, 0);
+                return null;
+        }
+    }
+
+    /**
+     * Reads the address ranges of a unit from __debug_ranges or __debug_rnglists.
+     *
+     * @return false if the ranges refer to data that is not supported, such as indexed addresses
+     */
+    private static boolean readRanges(CompileUnit u, Header h, ByteBuffer ranges, ByteBuffer rnglists, int unit,
+                                      List<long[]> result) {
+        long base = u.lowPc < 0 ? 0 : u.lowPc;
+        final long mask = u.addressSize == 8 ? -1L : (1L << (u.addressSize * 8)) - 1;
+        if (h.version < 5) {
+            if (ranges == null) {
+                return false;
+            }
+
+            final Cursor c = new Cursor(ranges, u.ranges);
+            while (true) {
+                final long start = c.unsigned(u.addressSize);
+                final long end = c.unsigned(u.addressSize);
+                if (start == 0 && end == 0) {
+                    return true;
+                } else if (start == mask) {
+                    base = end;
+                } else {
+                    result.add(new long[]{base + start, base + end, unit});
+                }
+            }
+        }
+
+        if (rnglists == null) {
+            return false;
+        }
+
+        final Cursor c = new Cursor(rnglists, u.ranges);
+        while (true) {
+            final int kind = c.u8();
+            switch (kind) {
+                case DW_RLE_end_of_list:
+                    return true;
+                case DW_RLE_offset_pair: {
+                    final long start = c.uleb();
+                    final long end = c.uleb();
+                    result.add(new long[]{base + start, base + end, unit});
+                    break;
+                }
+                case DW_RLE_base_address:
+                    base = c.unsigned(u.addressSize);
+                    break;
+                case DW_RLE_start_end: {
+                    final long start = c.unsigned(u.addressSize);
+                    final long end = c.unsigned(u.addressSize);
+                    result.add(new long[]{start, end, unit});
+                    break;
+                }
+                case DW_RLE_start_length: {
+                    final long start = c.unsigned(u.addressSize);
+                    final long length = c.uleb();
+                    result.add(new long[]{start, start + length, unit});
+                    break;
+                }
+                case DW_RLE_base_addressx:
+                case DW_RLE_startx_endx:
+                case DW_RLE_startx_length:
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * The decoded line table of one compile unit, as rows sorted by address in parallel arrays. The last row of each
+     * sequence has a file of -1 and marks the first address past the end of the sequence.
+     */
+    private static class LineTable {
+
+        private final long[] addresses;
+        private final int[] files;
+        private final int[] lines;
+        private final int[] sequenceStarts;
+        private final String[] fileNames;
+
+        LineTable(DWARF dwarf, Cursor c, String compDir) throws InvalidObjectException {
+            final Header h = new Header(c);
+            if (h.length < 0 || h.length > c.buffer.limit() - c.position) {
+                throw new InvalidObjectException("invalid unit length in __debug_line at offset " + c.position);
+            }
+
+            final int end = c.position + (int)h.length;
+            if (h.version < 2 || h.version > 5) {
+                throw new InvalidObjectException("unsupported line table version " + h.version);
+            }
+
+            if (h.version >= 5) {
+                c.u8(); // address_size
+                c.u8(); // segment_selector_size
+            }
+
+            final long headerLength = c.unsigned(h.offsetSize);
+            if (headerLength < 0 || headerLength > end - c.position) {
+                throw new InvalidObjectException("invalid header_length in line table at offset " + c.position);
+            }
+
+            final int programStart = c.position + (int)headerLength;
+            final int minimumInstructionLength = c.u8();
+            if (h.version >= 4) {
+                c.u8(); // maximum_operations_per_instruction
+            }
+
+            c.u8(); // default_is_stmt
+            final int lineBase = (byte)c.u8();
+            final int lineRange = c.u8();
+            final int opcodeBase = c.u8();
+            final int[] standardOpcodeLengths = new int[opcodeBase];
+            for (int x = 1; x < opcodeBase; x++) {
+                standardOpcodeLengths[x] = c.u8();
+            }
+
+            if (lineRange == 0) {
+                throw new InvalidObjectException("invalid line_range in line table");
+            }
+
+            final List<String> names = new ArrayList<>();
+            if (h.version >= 5) {
+                final CompileUnit u = new CompileUnit();
+                u.version = h.version;
+                u.offsetSize = h.offsetSize;
+                final List<String> directories = new ArrayList<>();
+                readEntries(dwarf, c, u, directories, directories);
+                readEntries(dwarf, c, u, directories, names);
+            } else {
+                final List<String> directories = new ArrayList<>();
+                directories.add(compDir);
+                while (true) {
+                    final String directory = c.cstring();
+                    if (directory.isEmpty()) {
+                        break;
+                    }
+
+                    directories.add(directory);
+                }
+
+                names.add(null);
+                while (true) {
+                    final String name = c.cstring();
+                    if (name.isEmpty()) {
+                        break;
+                    }
+
+                    names.add(path(directories, c.uleb(), name));
+                    c.uleb(); // modification time
+                    c.uleb(); // length
+                }
+            }
+
+            c.position = programStart;
+            final Rows rows = new Rows();
+            long address = 0;
+            int file = 1;
+            int line = 1;
+            while (c.position < end) {
+                final int opcode = c.u8();
+                if (opcode >= opcodeBase) {
+                    final int adjusted = opcode - opcodeBase;
+                    address += (adjusted / lineRange) * minimumInstructionLength;
+                    line += lineBase + adjusted % lineRange;
+                    rows.add(address, file, line);
+                } else if (opcode == 0) {
+                    final long length = c.uleb();
+                    if (length <= 0 || length > end - c.position) {
+                        throw new InvalidObjectException("invalid extended opcode length " + length + " in line table at offset " +
+                                                         c.position);
+                    }
+
+                    final int next = Math.toIntExact(c.position + length);
+                    final int extended = c.u8();
+                    if (extended == DW_LNE_end_sequence) {
+                        rows.add(address, -1, 0);
+                        rows.endSequence();
+                        address = 0;
+                        file = 1;
+                        line = 1;
+                    } else if (extended == DW_LNE_set_address) {
+                        address = c.unsigned((int)length - 1);
+                    } else if (extended == DW_LNE_define_file) {
+                        final String name = c.cstring();
+                        names.add(path(Collections.<String>emptyList(), c.uleb(), name));
+                    }
+
+                    c.position = next;
+                } else {
+                    switch (opcode) {
+                        case DW_LNS_copy:
+                            rows.add(address, file, line);
+                            break;
+                        case DW_LNS_advance_pc:
+                            address += c.uleb() * minimumInstructionLength;
+                            break;
+                        case DW_LNS_advance_line:
+                            line += (int)c.sleb();
+                            break;
+                        case DW_LNS_set_file:
+                            file = (int)c.uleb();
+                            break;
+                        case DW_LNS_const_add_pc:
+                            address += ((255 - opcodeBase) / lineRange) * minimumInstructionLength;
+                            break;
+                        case DW_LNS_fixed_advance_pc:
+                            address += c.u16();
+                            break;
+                        case DW_LNS_set_column:
+                        case DW_LNS_negate_stmt:
+                        case DW_LNS_set_basic_block:
+                        case DW_LNS_set_prologue_end:
+                        case DW_LNS_set_epilogue_begin:
+                        case DW_LNS_set_isa:
+                        default:
+                            for (int x = 0; x < standardOpcodeLengths[opcode]; x++) {
+                                c.uleb();
+                            }
+
+                            break;
+                    }
+                }
+            }
+
+            this.fileNames = names.toArray(new String[names.size()]);
+            rows.sort();
+            this.addresses = Arrays.copyOf(rows.addresses, rows.size);
+            this.files = Arrays.copyOf(rows.files, rows.size);
+            this.lines = Arrays.copyOf(rows.lines, rows.size);
+            this.sequenceStarts = Arrays.copyOf(rows.sequenceStarts, rows.sequences);
+            for (int x = 0; x < files.length; x++) {
+                if (files[x] >= fileNames.length) {
+                    files[x] = -1;
+                }
+            }
+        }
+
+        private static void readEntries(DWARF dwarf, Cursor c, CompileUnit u, List<String> directories, List<String> result) {
+            final int formatCount = c.u8();
+            final int[] contentTypes = new int[formatCount];
+            final int[] forms = new int[formatCount];
+            for (int x = 0; x < formatCount; x++) {
+                contentTypes[x] = (int)c.uleb();
+                forms[x] = (int)c.uleb();
+            }
+
+            final long count = c.uleb();
+            for (long e = 0; e < count; e++) {
+                String name = null;
+                long directory = -1;
+                for (int x = 0; x < formatCount; x++) {
+                    if (contentTypes[x] == DW_LNCT_path) {
+                        name = dwarf.readStringForm(c, forms[x], u.offsetSize, u);
+                    } else if (contentTypes[x] == DW_LNCT_directory_index) {
+                        directory = readForm(c, forms[x], u, 0);
+                    } else {
+                        readForm(c, forms[x], u, 0);
+                    }
+                }
+
+                result.add(directory < 0 ? name : path(directories, directory, name));
+            }
+        }
+
+        private static String path(List<String> directories, long directory, String name) {
+            if (name == null || name.startsWith("/") || directory < 0 || directory >= directories.size()) {
+                return name;
+            }
+
+            final String d = directories.get((int)directory);
+            if (d == null || d.isEmpty()) {
+                return name;
+            }
+
+            return d.endsWith("/") ? d + name : d + "/" + name;
+        }
+
+        /**
+         * @return the index of the row covering an address, or -1 if the address is not covered
+         */
+        int find(long address) {
+            int low = 0;
+            int high = addresses.length - 1;
+            int result = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (Long.compareUnsigned(addresses[mid], address) <= 0) {
+                    result = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            if (result < 0 || files[result] < 0 || lines[result] == 0) {
+                return -1;
+            }
+
+            return result;
+        }
+
+    }
+
+    /**
+     * Growable parallel arrays of line table rows, grouped in sequences.
+     */
+    private static class Rows {
+
+        private long[] addresses = new long[64];
+        private int[] files = new int[64];
+        private int[] lines = new int[64];
+        private int size;
+        private int[] sequenceStarts = new int[8];
+        private int sequences;
+        private int currentStart;
+
+        void add(long address, int file, int line) {
+            if (size == addresses.length) {
+                addresses = Arrays.copyOf(addresses, size * 2);
+                files = Arrays.copyOf(files, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+
+            addresses[size] = address;
+            files[size] = file;
+            lines[size] = line;
+            size++;
+        }
+
+        void endSequence() {
+            if (sequences == sequenceStarts.length) {
+                sequenceStarts = Arrays.copyOf(sequenceStarts, sequences * 2);
+            }
+
+            sequenceStarts[sequences++] = currentStart;
+            currentStart = size;
+        }
+
+        /**
+         * Orders the sequences by start address. Rows within a sequence are already in address order, and rows after the
+         * last end_sequence are dropped.
+         */
+        void sort() {
+            size = currentStart;
+            boolean sorted = true;
+            for (int s = 1; s < sequences && sorted; s++) {
+                sorted = Long.compareUnsigned(addresses[sequenceStarts[s - 1]], addresses[sequenceStarts[s]]) <= 0;
+            }
+
+            if (sorted) {
+                return;
+            }
+
+            final Integer[] order = new Integer[sequences];
+            for (int s = 0; s < sequences; s++) {
+                order[s] = s;
+            }
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compareUnsigned(addresses[sequenceStarts[a]], addresses[sequenceStarts[b]]);
+                }
+            });
+
+            final long[] sortedAddresses = new long[size];
+            final int[] sortedFiles = new int[size];
+            final int[] sortedLines = new int[size];
+            final int[] sortedStarts = new int[sequences];
+            int n = 0;
+            for (int s = 0; s < sequences; s++) {
+                final int start = sequenceStarts[order[s]];
+                final int end = order[s] + 1 < sequences ? sequenceStarts[order[s] + 1] : size;
+                sortedStarts[s] = n;
+                System.arraycopy(addresses, start, sortedAddresses, n, end - start);
+                System.arraycopy(files, start, sortedFiles, n, end - start);
+                System.arraycopy(lines, start, sortedLines, n, end - start);
+                n += end - start;
+            }
+
+            addresses = sortedAddresses;
+            files = sortedFiles;
+            lines = sortedLines;
+            sequenceStarts = sortedStarts;
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Receives the differences between an old and a new version of a binary as they are found. Every method does nothing by
+ * default, so a listener only needs to implement the differences it is interested in.
+ *
+ * Symbol names are passed as views into the mapped file; the buffer is only valid for the duration of the call and must not
+ * be modified. Symbols are reported in byte order of their names.
+ */
+public interface DiffListener {
+
+    default void uuidChanged(UUID oldUUID, UUID newUUID) {
+    }
+
+    default void dependencyAdded(String name) {
+    }
+
+    default void dependencyRemoved(String name) {
+    }
+
+    default void segmentAdded(String segname, long vmsize) {
+    }
+
+    default void segmentRemoved(String segname, long vmsize) {
+    }
+
+    /**
+     * Called for a segment present in both versions whose size or contents differ.
+     */
+    default void segmentChanged(String segname, long oldVmsize, long newVmsize) {
+    }
+
+    default void sectionAdded(String segname, String sectname, long size) {
+    }
+
+    default void sectionRemoved(String segname, String sectname, long size) {
+    }
+
+    /**
+     * Called for a section present in both versions whose size or contents differ.
+     */
+    default void sectionChanged(String segname, String sectname, long oldSize, long newSize) {
+    }
+
+    default void symbolAdded(ByteBuffer buffer, int offset, int length) {
+    }
+
+    default void symbolRemoved(ByteBuffer buffer, int offset, int length) {
+    }
+
+}
@@ -17,19 +17,40 @@
 
 package com.stackframe.executable;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *
@@ -40,6 +61,18 @@ public class MachO implements BinaryFormat {
     private static final int MH_CIGAM = 0xcefaedfe; // Little endian 32-bit Mach-O magic.
     private static final int MH_MAGIC_64 = 0xfeedfacf; // Big endian 64-bit Mach-O magic.
     private static final int MH_CIGAM_64 = 0xcffaedfe; // Little endian 64-bit Mach-O magic.
+    private static final int MACH_HEADER_SIZE = 28;
+    private static final int MACH_HEADER_64_SIZE = 32;
+
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread t = new Thread(r, "MachO load timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
 
     private static boolean supported(int magic) {
         return magic == MH_MAGIC || magic == MH_CIGAM || magic == MH_MAGIC_64 || magic == MH_CIGAM_64;
@@ -56,16 +89,24 @@ public class MachO implements BinaryFormat {
 
         private final Collection<Segment> segments;
         private final ByteBuffer mapping;
-
-        public MachOBinaryObject(RandomAccessFile f) throws IOException, InvalidObjectException {
+        private final boolean is64;
+        private int[] sortedSymbolNames;
+        private final Map<SegmentCommand, Long> segmentHashes = new HashMap<>();
+
+        /**
+         * @param image the beginning of the file, holding at least the header and the load commands
+         * @param mapping the whole file
+         */
+        public MachOBinaryObject(byte[] image, ByteBuffer mapping) throws IOException, InvalidObjectException {
             Collection<Segment> segments = new ArrayList<>();
-            f.seek(0);
+            final DataInputStream f = new DataInputStream(new ByteArrayInputStream(image));
             final int magic = f.readInt();
             if (!supported(magic)) {
                 throw new InvalidObjectException("unexpected magic value " + magic);
             }
 
             final boolean littleEndian = magic == MH_CIGAM || magic == MH_CIGAM_64;
+            is64 = magic == MH_MAGIC_64 || magic == MH_CIGAM_64;
             final DataInput i = littleEndian ? new InputSwapper(f) : f;
 
             final CPUType cpuType = CPUType.types.get(i.readInt());
@@ -80,15 +121,43 @@ public class MachO implements BinaryFormat {
 
             final int flags = i.readInt();
 
+            if (is64) {
+                final int reserved = i.readInt();
+            }
+
+            int offset = is64 ? MACH_HEADER_64_SIZE : MACH_HEADER_SIZE;
             for (int c = 0; c < ncmds; c++) {
-                long offset = f.getFilePointer();
-                Command s = Command.load(f, i);
+                if (offset + 8 > image.length) {
+                    throw new InvalidObjectException("truncated load command at offset " + offset);
+                }
+
+                final DataInputStream command = new DataInputStream(new ByteArrayInputStream(image, offset, image.length - offset));
+                Command s = Command.load(image, offset, littleEndian ? new InputSwapper(command) : command);
+                if (s.cmdsize < 8) {
+                    throw new InvalidObjectException("unexpected cmdsize=" + s.cmdsize);
+                }
+
                 segments.add(s);
-                f.seek(offset + s.cmdsize);
+                offset += s.cmdsize;
             }
 
             this.segments = Collections.unmodifiableCollection(segments);
-            this.mapping = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            this.mapping = mapping;
+            this.mapping.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        }
+
+        private int symbolEntrySize() {
+            return is64 ? 16 : 12;
+        }
+
+        private String symbolName(SymTabCommand symbolTable, int index) {
+            final int n_strx = mapping.getInt(symbolTable.symoff + index * symbolEntrySize());
+            return readString(mapping, symbolTable.stroff + n_strx);
+        }
+
+        private long symbolValue(SymTabCommand symbolTable, int index) {
+            final int position = symbolTable.symoff + index * symbolEntrySize() + 8;
+            return is64 ? mapping.getLong(position) : mapping.getInt(position) & 0xffffffffL;
         }
 
         @Override
@@ -109,8 +178,8 @@ public class MachO implements BinaryFormat {
             for (Segment s : segments) {
                 if (s instanceof SymTabCommand) {
                     SymTabCommand symbolTable = (SymTabCommand)s;
-                    for (SymTabCommand.SymbolTableEntry e : symbolTable.symbols) {
-                        symbols.add(readString(mapping, symbolTable.stroff + e.n_strx));
+                    for (int e = 0; e < symbolTable.nsyms; e++) {
+                        symbols.add(symbolName(symbolTable, e));
                     }
                 }
             }
@@ -118,15 +187,34 @@ public class MachO implements BinaryFormat {
             return Collections.unmodifiableCollection(symbols);
         }
 
+        @Override
+        public void symbols(SymbolVisitor visitor) {
+            final ByteBuffer view = mapping.duplicate().order(mapping.order());
+            final ByteBuffer words = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            for (Segment s : segments) {
+                if (s instanceof SymTabCommand) {
+                    final SymTabCommand symbolTable = (SymTabCommand)s;
+                    final int end = Math.min(symbolTable.stroff + symbolTable.strsize, view.limit());
+                    for (int e = 0; e < symbolTable.nsyms; e++) {
+                        final int entry = symbolTable.symoff + e * symbolEntrySize();
+                        final int n_strx = view.getInt(entry);
+                        final int n_type = view.get(entry + 4) & 0xff;
+                        final int offset = n_strx >= 0 && n_strx < symbolTable.strsize ? symbolTable.stroff + n_strx : end;
+                        visitor.visit(view, offset, indexOfNul(words, offset, end) - offset, n_type, symbolValue(symbolTable, e));
+                    }
+                }
+            }
+        }
+
         @Override
         public ByteBuffer getSymbol(String symbol) {
             for (Segment s : segments) {
                 if (s instanceof SymTabCommand) {
                     SymTabCommand symbolTable = (SymTabCommand)s;
-                    for (SymTabCommand.SymbolTableEntry e : symbolTable.symbols) {
-                        String name = readString(mapping, symbolTable.stroff + e.n_strx);
+                    for (int e = 0; e < symbolTable.nsyms; e++) {
+                        String name = symbolName(symbolTable, e);
                         if (name.equals(symbol)) {
-                            mapping.position(e.n_value);
+                            mapping.position((int)symbolValue(symbolTable, e));
                             ByteBuffer copy = mapping.slice();
                             return copy;
                         }
@@ -137,6 +225,315 @@ public class MachO implements BinaryFormat {
             return null;
         }
 
+        private SegmentCommand.Section findSection(String segname, String sectname) {
+            for (Segment s : segments) {
+                if (s instanceof SegmentCommand) {
+                    final SegmentCommand.Section section = ((SegmentCommand)s).section(segname, sectname);
+                    if (section != null) {
+                        return section;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return a view of the contents of a section, or null if it has no contents within the file range of its segment
+         * @throws InvalidObjectException if the section extends past the end of the file
+         */
+        private ByteBuffer contents(SegmentCommand.Section section) throws InvalidObjectException {
+            if (section == null || section.zeroFill()) {
+                return null;
+            }
+
+            final long start = section.offset & 0xffffffffL;
+            if (start < section.segmentFileoff || section.size < 0 || section.size > section.segmentFilesize ||
+                start + section.size > section.segmentFileoff + section.segmentFilesize) {
+                return null;
+            }
+
+            if (start + section.size > mapping.limit()) {
+                throw new InvalidObjectException("section " + section.segname + "," + section.sectname +
+                                                 " extends past the end of the file");
+            }
+
+            ByteBuffer copy = mapping.duplicate();
+            copy.limit((int)(start + section.size));
+            copy.position((int)start);
+            return copy.slice().order(mapping.order());
+        }
+
+        @Override
+        public ByteBuffer getSection(String segname, String sectname) throws InvalidObjectException {
+            return contents(findSection(segname, sectname));
+        }
+
+        @Override
+        public void strings(StringVisitor visitor) throws InvalidObjectException {
+            scanCStrings(StringVisitor.Source.CSTRING, getSection("__TEXT", "__cstring"), visitor);
+            scanCStrings(StringVisitor.Source.OBJC_METHNAME, getSection("__TEXT", "__objc_methname"), visitor);
+            scanCFStrings(getSection("__DATA", "__cfstring"), visitor);
+            scanCFStrings(getSection("__DATA_CONST", "__cfstring"), visitor);
+        }
+
+        /**
+         * Walks the CFString literals in a __cfstring section. Each entry is four pointer sized words: isa, flags, a pointer to
+         * the characters in __cstring or __ustring, and the length in characters.
+         */
+        private void scanCFStrings(ByteBuffer cfstrings, StringVisitor visitor) throws InvalidObjectException {
+            if (cfstrings == null) {
+                return;
+            }
+
+            SegmentCommand.Section cstring = findSection("__TEXT", "__cstring");
+            if (contents(cstring) == null) {
+                cstring = null;
+            }
+
+            SegmentCommand.Section ustring = findSection("__TEXT", "__ustring");
+            if (contents(ustring) == null) {
+                ustring = null;
+            }
+
+            long textBase = 0;
+            for (Segment s : segments) {
+                if (s instanceof SegmentCommand && ((SegmentCommand)s).segname.equals("__TEXT")) {
+                    textBase = ((SegmentCommand)s).vmaddr;
+                }
+            }
+
+            final ByteBuffer view = mapping.duplicate().order(mapping.order());
+            final int pointerSize = is64 ? 8 : 4;
+            final int entrySize = 4 * pointerSize;
+            for (int p = 0; p + entrySize <= cfstrings.limit(); p += entrySize) {
+                final long data = readPointer(cfstrings, p + 2 * pointerSize);
+                final long length = readPointer(cfstrings, p + 3 * pointerSize);
+
+                // Pointers in binaries linked with chained fixups are encoded; try the unslid target of a rebase as well.
+                if (!visitCFString(data, length, cstring, ustring, view, visitor) &&
+                    !visitCFString(data & 0xfffffffffL, length, cstring, ustring, view, visitor)) {
+                    visitCFString(textBase + (data & 0xffffffffL), length, cstring, ustring, view, visitor);
+                }
+            }
+        }
+
+        private static boolean visitCFString(long address, long length, SegmentCommand.Section cstring,
+                                             SegmentCommand.Section ustring, ByteBuffer view, StringVisitor visitor) {
+            if (cstring != null && cstring.contains(address, length)) {
+                visitor.visit(StringVisitor.Source.CFSTRING, view, cstring.offset + (int)(address - cstring.addr), (int)length);
+                return true;
+            } else if (ustring != null && ustring.contains(address, length * 2)) {
+                visitor.visit(StringVisitor.Source.CFSTRING_UTF16, view, ustring.offset + (int)(address - ustring.addr),
+                              (int)length * 2);
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public void diff(BinaryObject other, DiffListener listener) throws InvalidObjectException {
+            if (!(other instanceof MachOBinaryObject)) {
+                throw new IllegalArgumentException("cannot compare with " + other.getClass().getName());
+            }
+
+            final MachOBinaryObject o = (MachOBinaryObject)other;
+            final UUID oldUUID = uuid();
+            final UUID newUUID = o.uuid();
+            if (oldUUID == null ? newUUID != null : !oldUUID.equals(newUUID)) {
+                listener.uuidChanged(oldUUID, newUUID);
+            }
+
+            final Collection<String> oldDependencies = dependencies();
+            final Collection<String> newDependencies = o.dependencies();
+            for (String name : oldDependencies) {
+                if (!newDependencies.contains(name)) {
+                    listener.dependencyRemoved(name);
+                }
+            }
+
+            for (String name : newDependencies) {
+                if (!oldDependencies.contains(name)) {
+                    listener.dependencyAdded(name);
+                }
+            }
+
+            diffSegments(o, listener);
+            diffSymbols(o, listener);
+        }
+
+        private UUID uuid() {
+            for (Segment s : segments) {
+                if (s instanceof UUIDCommand) {
+                    return ((UUIDCommand)s).uuid;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public Collection<String> dependencies() {
+            Collection<String> dependencies = new LinkedHashSet<>();
+            for (Segment s : segments) {
+                if (s instanceof DylibCommand && ((DylibCommand)s).cmd == Command.LOAD_DYLIB) {
+                    dependencies.add(((DylibCommand)s).name);
+                }
+            }
+
+            return Collections.unmodifiableCollection(dependencies);
+        }
+
+        private Map<String, SegmentCommand> segmentsByName() {
+            Map<String, SegmentCommand> segmentsByName = new LinkedHashMap<>();
+            for (Segment s : segments) {
+                if (s instanceof SegmentCommand) {
+                    segmentsByName.put(((SegmentCommand)s).segname, (SegmentCommand)s);
+                }
+            }
+
+            return segmentsByName;
+        }
+
+        /**
+         * @return a hash of the file contents of a segment, computed once per segment
+         */
+        private synchronized long segmentHash(SegmentCommand segment) {
+            Long hash = segmentHashes.get(segment);
+            if (hash == null) {
+                final int from = (int)Math.min(segment.fileoff, mapping.limit());
+                final int to = (int)Math.min(segment.fileoff + segment.filesize, mapping.limit());
+                hash = hash(mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN), from, to);
+                segmentHashes.put(segment, hash);
+            }
+
+            return hash;
+        }
+
+        private void diffSegments(MachOBinaryObject o, DiffListener listener) throws InvalidObjectException {
+            final Map<String, SegmentCommand> oldSegments = segmentsByName();
+            final Map<String, SegmentCommand> newSegments = o.segmentsByName();
+            for (SegmentCommand oldSegment : oldSegments.values()) {
+                final SegmentCommand newSegment = newSegments.get(oldSegment.segname);
+                if (newSegment == null) {
+                    listener.segmentRemoved(oldSegment.segname, oldSegment.vmsize);
+                } else if (oldSegment.vmsize != newSegment.vmsize || oldSegment.filesize != newSegment.filesize ||
+                           segmentHash(oldSegment) != o.segmentHash(newSegment)) {
+                    listener.segmentChanged(oldSegment.segname, oldSegment.vmsize, newSegment.vmsize);
+                    diffSections(oldSegment, o, newSegment, listener);
+                }
+            }
+
+            for (SegmentCommand newSegment : newSegments.values()) {
+                if (!oldSegments.containsKey(newSegment.segname)) {
+                    listener.segmentAdded(newSegment.segname, newSegment.vmsize);
+                }
+            }
+        }
+
+        /**
+         * Compares the sections of a segment present in both versions. Sections are paired by segment and section name, since
+         * the single unnamed segment of an object file holds sections of several segments.
+         */
+        private void diffSections(SegmentCommand oldSegment, MachOBinaryObject o, SegmentCommand newSegment, DiffListener listener)
+                throws InvalidObjectException {
+            for (SegmentCommand.Section oldSection : oldSegment.sections) {
+                final SegmentCommand.Section newSection = newSegment.section(oldSection.segname, oldSection.sectname);
+                if (newSection == null) {
+                    listener.sectionRemoved(oldSection.segname, oldSection.sectname, oldSection.size);
+                } else if (oldSection.size != newSection.size) {
+                    listener.sectionChanged(oldSection.segname, oldSection.sectname, oldSection.size, newSection.size);
+                } else {
+                    final ByteBuffer oldContents = contents(oldSection);
+                    final ByteBuffer newContents = o.contents(newSection);
+                    if (oldContents == null ? newContents != null : !oldContents.equals(newContents)) {
+                        listener.sectionChanged(oldSection.segname, oldSection.sectname, oldSection.size, newSection.size);
+                    }
+                }
+            }
+
+            for (SegmentCommand.Section newSection : newSegment.sections) {
+                if (oldSegment.section(newSection.segname, newSection.sectname) == null) {
+                    listener.sectionAdded(newSection.segname, newSection.sectname, newSection.size);
+                }
+            }
+        }
+
+        /**
+         * @return the file offsets of the distinct symbol names, sorted by their bytes, computed once
+         */
+        private synchronized int[] sortedSymbolNames() {
+            if (sortedSymbolNames == null) {
+                int count = 0;
+                for (Segment s : segments) {
+                    if (s instanceof SymTabCommand) {
+                        count += ((SymTabCommand)s).nsyms;
+                    }
+                }
+
+                int[] offsets = new int[count];
+                int n = 0;
+                for (Segment s : segments) {
+                    if (s instanceof SymTabCommand) {
+                        final SymTabCommand symbolTable = (SymTabCommand)s;
+                        for (int e = 0; e < symbolTable.nsyms; e++) {
+                            final int n_strx = mapping.getInt(symbolTable.symoff + e * symbolEntrySize());
+                            if (n_strx >= 0 && n_strx < symbolTable.strsize) {
+                                offsets[n++] = symbolTable.stroff + n_strx;
+                            }
+                        }
+                    }
+                }
+
+                final ByteBuffer names = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+                offsets = Arrays.copyOf(offsets, n);
+                sortNames(offsets, names);
+                int distinct = 0;
+                for (int x = 0; x < offsets.length; x++) {
+                    if (distinct == 0 || compareNames(names, offsets[distinct - 1], names, offsets[x]) != 0) {
+                        offsets[distinct++] = offsets[x];
+                    }
+                }
+
+                sortedSymbolNames = Arrays.copyOf(offsets, distinct);
+            }
+
+            return sortedSymbolNames;
+        }
+
+        /**
+         * Merges the sorted symbol names of both versions, comparing the bytes of the string tables in place.
+         */
+        private void diffSymbols(MachOBinaryObject o, DiffListener listener) {
+            final int[] oldNames = sortedSymbolNames();
+            final int[] newNames = o.sortedSymbolNames();
+            final ByteBuffer oldMapping = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+            final ByteBuffer newMapping = o.mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+            final ByteBuffer oldWords = mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer newWords = o.mapping.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int x = 0;
+            int y = 0;
+            while (x < oldNames.length || y < newNames.length) {
+                final int c = x == oldNames.length ? 1 : y == newNames.length ? -1 :
+                              compareNames(oldMapping, oldNames[x], newMapping, newNames[y]);
+                if (c < 0) {
+                    final int offset = oldNames[x++];
+                    listener.symbolRemoved(oldMapping, offset, indexOfNul(oldWords, offset, oldWords.limit()) - offset);
+                } else if (c > 0) {
+                    final int offset = newNames[y++];
+                    listener.symbolAdded(newMapping, offset, indexOfNul(newWords, offset, newWords.limit()) - offset);
+                } else {
+                    x++;
+                    y++;
+                }
+            }
+        }
+
+        private long readPointer(ByteBuffer buffer, int position) {
+            return is64 ? buffer.getLong(position) : buffer.getInt(position) & 0xffffffffL;
+        }
+
     }
 
     private enum CPUType {
@@ -236,18 +633,61 @@ public class MachO implements BinaryFormat {
         public void disassemble(PrintWriter writer) {
         }
 
-        private static Command load(RandomAccessFile f, DataInput i) throws IOException, InvalidObjectException {
-            long offsetToStart = f.getFilePointer();
+        @Override
+        public int cmd() {
+            return cmd;
+        }
+
+        @Override
+        public int cmdsize() {
+            return cmdsize;
+        }
+
+        @Override
+        public String type() {
+            switch (cmd) {
+                case SEGMENT:
+                    return "LC_SEGMENT";
+                case SYMTAB:
+                    return "LC_SYMTAB";
+                case DYSYMTAB:
+                    return "LC_DYSYMTAB";
+                case LOAD_DYLIB:
+                    return "LC_LOAD_DYLIB";
+                case ID_DYLIB:
+                    return "LC_ID_DYLIB";
+                case SEGMENT_64:
+                    return "LC_SEGMENT_64";
+                case UUID:
+                    return "LC_UUID";
+                case DYLD_INFO:
+                    return "LC_DYLD_INFO";
+                case DYLD_INFO | REQ_DYLD:
+                    return "LC_DYLD_INFO_ONLY";
+                case VERSION_MIN_MACOSX:
+                    return "LC_VERSION_MIN_MACOSX";
+                case FUNCTION_STARTS:
+                    return "LC_FUNCTION_STARTS";
+                case DATA_IN_CODE:
+                    return "LC_DATA_IN_CODE";
+                case SOURCE_VERSION:
+                    return "LC_SOURCE_VERSION";
+                default:
+                    return null;
+            }
+        }
+
+        private static Command load(byte[] image, int offsetToStart, DataInput i) throws IOException, InvalidObjectException {
             int cmd = i.readInt();
             int cmdsize = i.readInt();
             if (cmd == SEGMENT || cmd == SEGMENT_64) {
                 return new SegmentCommand(cmd, cmdsize, i);
             } else if (cmd == ID_DYLIB || cmd == LOAD_DYLIB) {
-                return new DylibCommand(cmd, cmdsize, f, offsetToStart, i);
+                return new DylibCommand(cmd, cmdsize, image, offsetToStart, i);
             } else if (cmd == (DYLD_INFO | REQ_DYLD)) {
                 return new DYLDInfoCommand(cmd, cmdsize, i);
             } else if (cmd == SYMTAB) {
-                return new SymTabCommand(cmd, cmdsize, f, offsetToStart, i);
+                return new SymTabCommand(cmd, cmdsize, i);
             } else if (cmd == DYSYMTAB) {
                 return new DySymTabCommand(cmd, cmdsize, i);
             } else if (cmd == UUID) {
@@ -261,12 +701,12 @@ public class MachO implements BinaryFormat {
             } else if (cmd == DATA_IN_CODE) {
                 return new DataInCodeCommand(cmd, cmdsize, i);
             } else {
-                throw new InvalidObjectException("unexpected cmd=" + cmd);
+                return new Command(cmd, cmdsize);
             }
         }
     }
 
-    private static class SegmentCommand extends Command {
+    private static class SegmentCommand extends Command implements MappedSegment {
 
         private final String segname;
         private final long vmaddr;
@@ -277,28 +717,135 @@ public class MachO implements BinaryFormat {
         private final int initprot;
         private final int nsects;
         private final int flags;
+        private final Collection<Section> sections;
 
         public SegmentCommand(int cmd, int cmdsize, DataInput i) throws IOException, InvalidObjectException {
             super(cmd, cmdsize);
-            byte[] segnameBytes = new byte[16];
-            i.readFully(segnameBytes);
-            segname = new String(segnameBytes);
+            segname = readName(i);
             if (cmd == Command.SEGMENT_64) {
                 vmaddr = i.readLong();
                 vmsize = i.readLong();
                 fileoff = i.readLong();
                 filesize = i.readLong();
             } else {
-                vmaddr = i.readInt();
-                vmsize = i.readInt();
-                fileoff = i.readInt();
-                filesize = i.readInt();
+                vmaddr = i.readInt() & 0xffffffffL;
+                vmsize = i.readInt() & 0xffffffffL;
+                fileoff = i.readInt() & 0xffffffffL;
+                filesize = i.readInt() & 0xffffffffL;
             }
 
             maxprot = i.readInt();
             initprot = i.readInt();
             nsects = i.readInt();
             flags = i.readInt();
+
+            Collection<Section> sections = new ArrayList<>();
+            for (int x = 0; x < nsects; x++) {
+                sections.add(new Section(cmd == Command.SEGMENT_64, i, fileoff, filesize));
+            }
+
+            this.sections = Collections.unmodifiableCollection(sections);
+        }
+
+        private Section section(String segname, String sectname) {
+            for (Section section : sections) {
+                if (section.segname.equals(segname) && section.sectname.equals(sectname)) {
+                    return section;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public String segname() {
+            return segname;
+        }
+
+        @Override
+        public long vmaddr() {
+            return vmaddr;
+        }
+
+        @Override
+        public long vmsize() {
+            return vmsize;
+        }
+
+        @Override
+        public long fileoff() {
+            return fileoff;
+        }
+
+        @Override
+        public long filesize() {
+            return filesize;
+        }
+
+        @Override
+        public int nsects() {
+            return nsects;
+        }
+
+        private static class Section {
+
+            private static final int SECTION_TYPE = 0xff;
+            private static final int S_ZEROFILL = 0x1;
+            private static final int S_GB_ZEROFILL = 0xc;
+            private static final int S_THREAD_LOCAL_ZEROFILL = 0x12;
+
+            private final String sectname;
+            private final String segname;
+            private final long addr;
+            private final long size;
+            private final int offset;
+            private final int align;
+            private final int reloff;
+            private final int nreloc;
+            private final int flags;
+            private final long segmentFileoff;
+            private final long segmentFilesize;
+
+            public Section(boolean is64, DataInput i, long segmentFileoff, long segmentFilesize) throws IOException {
+                this.segmentFileoff = segmentFileoff;
+                this.segmentFilesize = segmentFilesize;
+                sectname = readName(i);
+                segname = readName(i);
+                if (is64) {
+                    addr = i.readLong();
+                    size = i.readLong();
+                } else {
+                    addr = i.readInt() & 0xffffffffL;
+                    size = i.readInt() & 0xffffffffL;
+                }
+
+                offset = i.readInt();
+                align = i.readInt();
+                reloff = i.readInt();
+                nreloc = i.readInt();
+                flags = i.readInt();
+                final int reserved1 = i.readInt();
+                final int reserved2 = i.readInt();
+                if (is64) {
+                    final int reserved3 = i.readInt();
+                }
+            }
+
+            private boolean contains(long address, long length) {
+                return Long.compareUnsigned(address, addr) >= 0 && length >= 0 && address - addr + length <= size;
+            }
+
+            private boolean zeroFill() {
+                final int type = flags & SECTION_TYPE;
+                return type == S_ZEROFILL || type == S_GB_ZEROFILL || type == S_THREAD_LOCAL_ZEROFILL;
+            }
+
+            @Override
+            public String toString() {
+                return "Section{" + "sectname=" + sectname + ", segname=" + segname + ", addr=" + addr + ", size=" + size +
+                       ", offset=" + offset + ", align=" + align + ", reloff=" + reloff + ", nreloc=" + nreloc + ", flags=" + flags + '}';
+            }
+
         }
 
         @Override
@@ -310,25 +857,170 @@ public class MachO implements BinaryFormat {
 
     }
 
-    private static String readString(ByteBuffer buffer, int position) {
-        buffer.position(position);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        while (true) {
-            byte b = buffer.get();
-            if (b == 0) {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /**
+     * Finds the next NUL byte, eight bytes at a time. The buffer must be little endian so that the lowest flagged byte of a
+     * word is the first NUL in memory; borrows only carry toward later bytes.
+     *
+     * @return the position of the NUL, or limit if there is none
+     */
+    private static int indexOfNul(ByteBuffer buffer, int from, int limit) {
+        int p = from;
+        while (p + 8 <= limit) {
+            final long word = buffer.getLong(p);
+            final long found = (word - ONES) & ~word & HIGHS;
+            if (found != 0) {
+                return p + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+
+            p += 8;
+        }
+
+        while (p < limit && buffer.get(p) != 0) {
+            p++;
+        }
+
+        return p;
+    }
+
+    private static void scanCStrings(StringVisitor.Source source, ByteBuffer section, StringVisitor visitor) {
+        if (section == null) {
+            return;
+        }
+
+        final ByteBuffer words = section.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int limit = section.limit();
+        int start = 0;
+        while (start < limit) {
+            final int end = indexOfNul(words, start, limit);
+            if (end > start) {
+                visitor.visit(source, section, start, end - start);
+            }
+
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Compares two NUL terminated strings by their unsigned bytes, eight bytes at a time while they are equal. The buffers
+     * must be big endian so that comparing words orders them like their bytes.
+     */
+    private static int compareNames(ByteBuffer a, int pa, ByteBuffer b, int pb) {
+        while (pa + 8 <= a.limit() && pb + 8 <= b.limit()) {
+            final long wa = a.getLong(pa);
+            final long wb = b.getLong(pb);
+            if (wa != wb) {
                 break;
-            } else {
-                baos.write(b);
             }
+
+            if (((wa - ONES) & ~wa & HIGHS) != 0) {
+                return 0; // Both end within these equal words.
+            }
+
+            pa += 8;
+            pb += 8;
         }
 
-        return new String(baos.toByteArray());
+        while (true) {
+            final int ca = pa < a.limit() ? a.get(pa) & 0xff : 0;
+            final int cb = pb < b.limit() ? b.get(pb) & 0xff : 0;
+            if (ca != cb) {
+                return ca - cb;
+            } else if (ca == 0) {
+                return 0;
+            }
+
+            pa++;
+            pb++;
+        }
+    }
+
+    /**
+     * Sorts offsets of NUL terminated strings by the strings, with a bottom up merge sort over insertion sorted runs.
+     */
+    private static void sortNames(int[] offsets, ByteBuffer names) {
+        final int run = 16;
+        for (int start = 0; start < offsets.length; start += run) {
+            final int end = Math.min(start + run, offsets.length);
+            for (int x = start + 1; x < end; x++) {
+                final int v = offsets[x];
+                int y = x - 1;
+                while (y >= start && compareNames(names, offsets[y], names, v) > 0) {
+                    offsets[y + 1] = offsets[y];
+                    y--;
+                }
+
+                offsets[y + 1] = v;
+            }
+        }
+
+        int[] from = offsets;
+        int[] to = new int[offsets.length];
+        for (int width = run; width < offsets.length; width *= 2) {
+            for (int low = 0; low < offsets.length; low += 2 * width) {
+                final int middle = Math.min(low + width, offsets.length);
+                final int high = Math.min(low + 2 * width, offsets.length);
+                int x = low;
+                int y = middle;
+                int z = low;
+                while (x < middle && y < high) {
+                    to[z++] = compareNames(names, from[x], names, from[y]) <= 0 ? from[x++] : from[y++];
+                }
+
+                System.arraycopy(from, x, to, z, middle - x);
+                System.arraycopy(from, y, to, z + middle - x, high - y);
+            }
+
+            final int[] swap = from;
+            from = to;
+            to = swap;
+        }
+
+        if (from != offsets) {
+            System.arraycopy(from, 0, offsets, 0, offsets.length);
+        }
     }
 
-    private static String readString(RandomAccessFile f) throws IOException {
+    /**
+     * Hashes a range of a little endian buffer, a word at a time.
+     */
+    private static long hash(ByteBuffer buffer, int from, int to) {
+        long h = 0x9e3779b97f4a7c15L ^ (to - from);
+        int p = from;
+        for (; p + 8 <= to; p += 8) {
+            h = Long.rotateLeft(h ^ buffer.getLong(p) * 0xc2b2ae3d27d4eb4fL, 31) * 0x9e3779b97f4a7c15L;
+        }
+
+        for (; p < to; p++) {
+            h = (h ^ (buffer.get(p) & 0xff)) * 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String readName(DataInput i) throws IOException {
+        byte[] nameBytes = new byte[16];
+        i.readFully(nameBytes);
+        int length = 0;
+        while (length < nameBytes.length && nameBytes[length] != 0) {
+            length++;
+        }
+
+        return new String(nameBytes, 0, length);
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        buffer.position(position);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         while (true) {
-            byte b = f.readByte();
+            byte b = buffer.get();
             if (b == 0) {
                 break;
             } else {
@@ -346,13 +1038,14 @@ public class MachO implements BinaryFormat {
         private final int current_version;
         private final int compatibility_version;
 
-        public DylibCommand(int cmd, int cmdsize, RandomAccessFile f, long offsetToStart, DataInput i) throws IOException, InvalidObjectException {
+        public DylibCommand(int cmd, int cmdsize, byte[] image, int offsetToStart, DataInput i) throws IOException, InvalidObjectException {
             super(cmd, cmdsize);
             int stringOffset = i.readInt();
-            long mark = f.getFilePointer();
-            f.seek(offsetToStart + stringOffset);
-            name = readString(f);
-            f.seek(mark);
+            if (stringOffset < 0 || stringOffset >= cmdsize || offsetToStart + cmdsize > image.length) {
+                throw new InvalidObjectException("unexpected dylib name offset " + stringOffset);
+            }
+
+            name = readString(ByteBuffer.wrap(image, 0, offsetToStart + cmdsize), offsetToStart + stringOffset);
             timestamp = i.readInt();
             current_version = i.readInt();
             compatibility_version = i.readInt();
@@ -416,53 +1109,22 @@ public class MachO implements BinaryFormat {
         }
     }
 
+    /**
+     * The location of the symbol and string tables. The nlist entries themselves are read from the mapping on demand.
+     */
     private static class SymTabCommand extends Command {
 
-        private final Collection<SymbolTableEntry> symbols;
         private final int symoff;
         private final int nsyms;
         private final int stroff;
         private final int strsize;
 
-        public SymTabCommand(int cmd, int cmdsize, RandomAccessFile f, long offsetToStart, DataInput i) throws IOException, InvalidObjectException {
+        public SymTabCommand(int cmd, int cmdsize, DataInput i) throws IOException, InvalidObjectException {
             super(cmd, cmdsize);
-            Collection<SymbolTableEntry> symbols = new ArrayList<>();
-
             symoff = i.readInt();
             nsyms = i.readInt();
             stroff = i.readInt();
             strsize = i.readInt();
-
-            long mark = f.getFilePointer();
-            f.seek(symoff);
-            for (int x = 0; x < nsyms; x++) {
-                SymbolTableEntry e = new SymbolTableEntry(i);
-                symbols.add(e);
-            }
-
-            this.symbols = Collections.unmodifiableCollection(symbols);
-            f.seek(mark);
-        }
-
-        private static class SymbolTableEntry {
-
-            private final int n_strx;
-            private final byte type;
-            private final int n_value;
-
-            public SymbolTableEntry(DataInput i) throws IOException {
-                n_strx = i.readInt();
-                type = i.readByte();
-                byte spare = i.readByte();
-                short n_desc = i.readShort();
-                n_value = i.readInt();
-            }
-
-            @Override
-            public String toString() {
-                return "SymbolTableEntry{" + "n_strx=" + n_strx + ", type=" + type + ", n_value=" + n_value + '}';
-            }
-
         }
 
         @Override
@@ -506,13 +1168,19 @@ public class MachO implements BinaryFormat {
 
     private static class UUIDCommand extends Command {
 
+        private final UUID uuid;
+
         public UUIDCommand(int cmd, int cmdsize, DataInput i) throws IOException, InvalidObjectException {
             super(cmd, cmdsize);
+            byte[] uuidBytes = new byte[16];
+            i.readFully(uuidBytes);
+            final ByteBuffer b = ByteBuffer.wrap(uuidBytes);
+            uuid = new UUID(b.getLong(), b.getLong());
         }
 
         @Override
         public String toString() {
-            return "UUIDCommand{" + '}';
+            return "UUIDCommand{" + "uuid=" + uuid + '}';
         }
 
     }
@@ -543,10 +1211,172 @@ public class MachO implements BinaryFormat {
 
     }
 
+    /**
+     * @param header the beginning of a file, at least MACH_HEADER_SIZE bytes of it
+     * @return the number of bytes at the beginning of the file holding the header and the load commands
+     */
+    private static int imageSize(byte[] header) throws InvalidObjectException {
+        if (header.length < MACH_HEADER_SIZE) {
+            throw new InvalidObjectException("truncated header");
+        }
+
+        final ByteBuffer b = ByteBuffer.wrap(header);
+        final int magic = b.getInt(0);
+        if (!supported(magic)) {
+            throw new InvalidObjectException("unexpected magic value " + magic);
+        }
+
+        b.order(magic == MH_CIGAM || magic == MH_CIGAM_64 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        final long size = (magic == MH_MAGIC_64 || magic == MH_CIGAM_64 ? MACH_HEADER_64_SIZE : MACH_HEADER_SIZE) +
+                          (b.getInt(20) & 0xffffffffL);
+        if (size > Integer.MAX_VALUE) {
+            throw new InvalidObjectException("unexpected sizeofcmds");
+        }
+
+        return (int)size;
+    }
+
     @Override
     public BinaryObject load(RandomAccessFile file) throws IOException, InvalidObjectException {
-        final MachOBinaryObject o = new MachOBinaryObject(file);
+        final byte[] header = new byte[(int)Math.min(MACH_HEADER_64_SIZE, file.length())];
+        file.seek(0);
+        file.readFully(header);
+        final byte[] image = new byte[(int)Math.min(imageSize(header), file.length())];
+        file.seek(0);
+        file.readFully(image);
+        final MachOBinaryObject o = new MachOBinaryObject(image, file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
         return o;
     }
 
+    @Override
+    public CompletableFuture<BinaryObject> loadAsync(Path path, Executor executor) {
+        final CompletableFuture<BinaryObject> result = new CompletableFuture<>();
+        final AsynchronousFileChannel channel;
+        final FileChannel file;
+        try {
+            // The default group, not the executor: on Linux and macOS the group also runs the blocking reads themselves.
+            channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        try {
+            // Opened up front so that the file mapped is the file read, even if the path is replaced while loading.
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException | RuntimeException e) {
+            close(channel);
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        // Completing the result early, by cancellation or a timeout, closes the channel and so aborts any pending read. Closing
+        // waits for reads in progress, so it is done on the executor rather than on whichever thread completed the result.
+        result.whenComplete((o, e) -> execute(executor, () -> {
+            close(channel);
+            close(file);
+        }));
+        read(channel, MACH_HEADER_64_SIZE).thenCompose(header -> {
+            try {
+                // A corrupt sizeofcmds must not size the buffer beyond the file, as in load.
+                return read(channel, (int)Math.min(imageSize(header), channel.size()));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).thenApplyAsync(image -> {
+            if (result.isDone()) {
+                return null;
+            }
+
+            try {
+                // The two channels were opened separately; make sure they see the same file before trusting the mapping.
+                final long size = file.size();
+                if (size != channel.size() || size < image.length) {
+                    throw new InvalidObjectException(path + " changed while loading");
+                }
+
+                final ByteBuffer mapping = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                final ByteBuffer commands = mapping.duplicate();
+                commands.limit(image.length);
+                if (!commands.equals(ByteBuffer.wrap(image))) {
+                    throw new InvalidObjectException(path + " changed while loading");
+                }
+
+                return (BinaryObject)new MachOBinaryObject(image, mapping);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).whenComplete((o, e) -> {
+            if (e == null) {
+                result.complete(o);
+            } else {
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<BinaryObject> loadAsync(Path path, Executor executor, long timeout, TimeUnit unit) {
+        final CompletableFuture<BinaryObject> result = loadAsync(path, executor);
+        // The timer thread only hands the timeout to the executor, so that a slow close or a callback attached to the result
+        // cannot hold up other timeouts.
+        final ScheduledFuture<?> timer = timeouts.schedule(() -> execute(executor, () -> {
+            result.completeExceptionally(new TimeoutException("loading " + path + " timed out"));
+        }), timeout, unit);
+        result.whenComplete((o, e) -> timer.cancel(false));
+        return result;
+    }
+
+    /**
+     * Reads up to length bytes from the beginning of a file, continuing after short reads.
+     *
+     * @return the bytes read, fewer than length if the file is shorter
+     */
+    private static CompletableFuture<byte[]> read(AsynchronousFileChannel channel, int length) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+
+            @Override
+            public void completed(Integer n, ByteBuffer b) {
+                if (n < 0 || !b.hasRemaining()) {
+                    result.complete(Arrays.copyOf(b.array(), b.position()));
+                } else {
+                    try {
+                        channel.read(b, b.position(), b, this);
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, ByteBuffer b) {
+                result.completeExceptionally(e);
+            }
+
+        });
+        return result;
+    }
+
+    /**
+     * Runs a task on an executor, or on the common pool if the executor rejects it, so that cleanup is never lost.
+     */
+    private static void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            ForkJoinPool.commonPool().execute(task);
+        }
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done with the channel.
+        }
+    }
+
 }
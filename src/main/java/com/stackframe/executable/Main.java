@@ -0,0 +1,654 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A command line tool that lists the load commands, segments, symbols and dependencies of binaries as JSON Lines or TSV.
+ *
+ * Files are processed in parallel, but their records are written in the order the files were given. Records are encoded
+ * straight into large byte buffers that are recycled once written, without creating a String per field. The buffers of the
+ * file being written are written as soon as they fill. Each file queued behind it holds at most a few buffers before its
+ * worker waits, and at most twice as many files as threads are in flight.
+ */
+public class Main {
+
+    enum Format {
+        JSONL,
+        TSV
+    }
+
+    enum Listing {
+        COMMANDS,
+        SEGMENTS,
+        SYMBOLS,
+        DEPENDENCIES
+    }
+
+    private static final String USAGE =
+            "usage: executable [-l] [-s] [-n] [-d] [--tsv] [-j threads] file...\n" +
+            "  -l  list load commands: file, command, index, cmd, cmdsize, type\n" +
+            "  -s  list segments: file, segment, segname, vmaddr, vmsize, fileoff, filesize, nsects\n" +
+            "  -n  list symbols: file, symbol, name, type, value\n" +
+            "  -d  list dependencies: file, dependency, name\n" +
+            "  With none of -l, -s, -n or -d, everything is listed.\n" +
+            "  --tsv       write tab separated values instead of JSON Lines\n" +
+            "  -j threads  the number of files to process at once\n";
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // Written chunks kept for reuse; any beyond this are left to the garbage collector.
+    private static final BlockingQueue<byte[]> chunkPool = new ArrayBlockingQueue<>(16);
+
+    private static byte[] chunk() {
+        final byte[] chunk = chunkPool.poll();
+        return chunk == null ? new byte[CHUNK_SIZE] : chunk;
+    }
+
+    private static void recycle(byte[] chunk) {
+        chunkPool.offer(chunk);
+    }
+
+    /**
+     * A filled part of a chunk.
+     */
+    private static class Chunk {
+
+        private final byte[] bytes;
+        private final int length;
+
+        Chunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+    }
+
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    // Filled chunks a file may queue before its worker waits for them to be written.
+    private static final int QUEUED_CHUNKS = 4;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /**
+     * The encoded records of one file. A worker fills chunks and queues them, and the main thread takes them off the queue
+     * and writes them, as they fill for the file at the head of the line. The queue is bounded, so a worker that gets ahead
+     * of the file being written waits. That cannot deadlock: the workers run files in order, so the file at the head of the
+     * line is always running or done.
+     */
+    static class Output {
+
+        private final Format format;
+        private final String file;
+        private final byte[] prefix;
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        private byte[] buffer = chunk();
+        private int position;
+        private boolean inRecord;
+        private int recordStart; // -1 if the current record began in an earlier chunk
+        private volatile String error;
+        private Future<?> task;
+
+        Output(Format format, String file) {
+            this.format = format;
+            this.file = file;
+            writeString(file);
+            this.prefix = Arrays.copyOf(buffer, position);
+            position = 0;
+        }
+
+        private void ensure(int n) {
+            if (position + n > buffer.length) {
+                queue(new Chunk(buffer, position));
+                buffer = chunk();
+                position = 0;
+                recordStart = -1;
+            }
+        }
+
+        private void writeAscii(String s) {
+            ensure(s.length());
+            for (int x = 0; x < s.length(); x++) {
+                buffer[position++] = (byte)s.charAt(x);
+            }
+        }
+
+        /**
+         * Writes an escaped byte of a string. Bytes of multibyte UTF-8 sequences are passed through.
+         */
+        private void writeEscaped(int b) {
+            ensure(6);
+            if (format == Format.JSONL) {
+                if (b == '"' || b == '\\') {
+                    buffer[position++] = '\\';
+                    buffer[position++] = (byte)b;
+                } else if (b < 0x20) {
+                    buffer[position++] = '\\';
+                    buffer[position++] = 'u';
+                    buffer[position++] = '0';
+                    buffer[position++] = '0';
+                    buffer[position++] = HEX[b >>> 4];
+                    buffer[position++] = HEX[b & 0xf];
+                } else {
+                    buffer[position++] = (byte)b;
+                }
+            } else {
+                if (b == '\t') {
+                    buffer[position++] = '\\';
+                    buffer[position++] = 't';
+                } else if (b == '\n') {
+                    buffer[position++] = '\\';
+                    buffer[position++] = 'n';
+                } else if (b == '\r') {
+                    buffer[position++] = '\\';
+                    buffer[position++] = 'r';
+                } else if (b == '\\') {
+                    buffer[position++] = '\\';
+                    buffer[position++] = '\\';
+                } else {
+                    buffer[position++] = (byte)b;
+                }
+            }
+        }
+
+        private void writeString(String s) {
+            for (int x = 0; x < s.length(); x++) {
+                final char c = s.charAt(x);
+                if (c < 0x80) {
+                    writeEscaped(c);
+                } else if (c < 0x800) {
+                    writeEscaped(0xc0 | c >>> 6);
+                    writeEscaped(0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && x + 1 < s.length() && Character.isLowSurrogate(s.charAt(x + 1))) {
+                    final int p = Character.toCodePoint(c, s.charAt(++x));
+                    writeEscaped(0xf0 | p >>> 18);
+                    writeEscaped(0x80 | p >>> 12 & 0x3f);
+                    writeEscaped(0x80 | p >>> 6 & 0x3f);
+                    writeEscaped(0x80 | p & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate has no UTF-8 encoding.
+                    writeReplacement();
+                } else {
+                    writeEscaped(0xe0 | c >>> 12);
+                    writeEscaped(0x80 | c >>> 6 & 0x3f);
+                    writeEscaped(0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private void writeReplacement() {
+            ensure(3);
+            buffer[position++] = (byte)0xef;
+            buffer[position++] = (byte)0xbf;
+            buffer[position++] = (byte)0xbd;
+        }
+
+        /**
+         * Returns the length of the well-formed UTF-8 sequence at a position, or 0 if the byte there does not start one.
+         * Overlong encodings, surrogates and code points above U+10FFFF are not well-formed.
+         */
+        private static int utf8Length(ByteBuffer buffer, int x, int end) {
+            final int b = buffer.get(x) & 0xff;
+            final int length;
+            int low = 0x80;
+            int high = 0xbf;
+            if (b < 0x80) {
+                return 1;
+            } else if (b >= 0xc2 && b <= 0xdf) {
+                length = 2;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                length = 3;
+                if (b == 0xe0) {
+                    low = 0xa0;
+                } else if (b == 0xed) {
+                    high = 0x9f;
+                }
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                length = 4;
+                if (b == 0xf0) {
+                    low = 0x90;
+                } else if (b == 0xf4) {
+                    high = 0x8f;
+                }
+            } else {
+                return 0;
+            }
+
+            if (x + length > end) {
+                return 0;
+            }
+
+            final int second = buffer.get(x + 1) & 0xff;
+            if (second < low || second > high) {
+                return 0;
+            }
+
+            for (int i = 2; i < length; i++) {
+                if ((buffer.get(x + i) & 0xc0) != 0x80) {
+                    return 0;
+                }
+            }
+
+            return length;
+        }
+
+        private void writeDecimal(long v) {
+            ensure(20);
+            if (v == 0) {
+                buffer[position++] = '0';
+                return;
+            }
+
+            // Digits are produced from a negative value so that Long.MIN_VALUE needs no special case.
+            long n = v < 0 ? v : -v;
+            if (v < 0) {
+                buffer[position++] = '-';
+            }
+
+            final int start = position;
+            while (n != 0) {
+                buffer[position++] = (byte)('0' - n % 10);
+                n /= 10;
+            }
+
+            for (int low = start, high = position - 1; low < high; low++, high--) {
+                final byte t = buffer[low];
+                buffer[low] = buffer[high];
+                buffer[high] = t;
+            }
+        }
+
+        private void writeHex(long v) {
+            ensure(18);
+            buffer[position++] = '0';
+            buffer[position++] = 'x';
+            final int digits = v == 0 ? 1 : 16 - Long.numberOfLeadingZeros(v) / 4;
+            for (int d = digits - 1; d >= 0; d--) {
+                buffer[position++] = HEX[(int)(v >>> (d * 4)) & 0xf];
+            }
+        }
+
+        private void separator(String name) {
+            if (format == Format.JSONL) {
+                writeAscii(",\"");
+                writeAscii(name);
+                writeAscii("\":");
+            } else {
+                ensure(1);
+                buffer[position++] = '\t';
+            }
+        }
+
+        private void writePrefix() {
+            ensure(prefix.length);
+            System.arraycopy(prefix, 0, buffer, position, prefix.length);
+            position += prefix.length;
+        }
+
+        void record(String kind) {
+            ensure(prefix.length + 32);
+            inRecord = true;
+            recordStart = position;
+            if (format == Format.JSONL) {
+                writeAscii("{\"file\":\"");
+                writePrefix();
+                writeAscii("\",\"kind\":\"");
+                writeAscii(kind);
+                writeAscii("\"");
+            } else {
+                writePrefix();
+                writeAscii("\t");
+                writeAscii(kind);
+            }
+        }
+
+        void field(String name, long value) {
+            separator(name);
+            writeDecimal(value);
+        }
+
+        void hexField(String name, long value) {
+            separator(name);
+            if (format == Format.JSONL) {
+                writeAscii("\"");
+                writeHex(value);
+                writeAscii("\"");
+            } else {
+                writeHex(value);
+            }
+        }
+
+        void field(String name, String value) {
+            separator(name);
+            if (value == null) {
+                writeAscii(format == Format.JSONL ? "null" : "-");
+            } else if (format == Format.JSONL) {
+                writeAscii("\"");
+                writeString(value);
+                writeAscii("\"");
+            } else {
+                writeString(value);
+            }
+        }
+
+        /**
+         * Writes a field from bytes that are expected to be UTF-8. A byte that is not part of a well-formed sequence is
+         * replaced with U+FFFD in JSON and written as a \xNN escape in TSV.
+         */
+        void field(String name, ByteBuffer value, int offset, int length) {
+            separator(name);
+            if (format == Format.JSONL) {
+                writeAscii("\"");
+            }
+
+            final int end = offset + length;
+            for (int x = offset; x < end;) {
+                final int n = utf8Length(value, x, end);
+                if (n == 0) {
+                    final int b = value.get(x++) & 0xff;
+                    if (format == Format.JSONL) {
+                        writeReplacement();
+                    } else {
+                        ensure(4);
+                        buffer[position++] = '\\';
+                        buffer[position++] = 'x';
+                        buffer[position++] = HEX[b >>> 4];
+                        buffer[position++] = HEX[b & 0xf];
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        writeEscaped(value.get(x++) & 0xff);
+                    }
+                }
+            }
+
+            if (format == Format.JSONL) {
+                writeAscii("\"");
+            }
+        }
+
+        void end() {
+            ensure(2);
+            if (format == Format.JSONL) {
+                buffer[position++] = '}';
+            }
+
+            buffer[position++] = '\n';
+            inRecord = false;
+        }
+
+        /**
+         * Records a failure. A record that was cut short is dropped, or terminated if part of it has already been queued, so
+         * that the output of the next file starts on a line of its own.
+         */
+        void fail(String error) {
+            if (inRecord) {
+                if (recordStart >= 0) {
+                    position = recordStart;
+                } else {
+                    ensure(1);
+                    buffer[position++] = '\n';
+                }
+
+                inRecord = false;
+            }
+
+            this.error = error;
+        }
+
+        /**
+         * Waits for room in the queue. The main thread always drains the queue eventually, and the end of the file must be
+         * queued, so the wait is not interruptible.
+         */
+        private void queue(Chunk chunk) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    filled.put(chunk);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Queues the last chunk. Called by the worker once the file is done, whether or not it failed.
+         */
+        void finish() {
+            if (position > 0) {
+                queue(new Chunk(buffer, position));
+            } else {
+                recycle(buffer);
+            }
+
+            buffer = null;
+            queue(END);
+        }
+
+        /**
+         * Writes chunks as they are queued until the file is done.
+         */
+        void writeTo(OutputStream out) throws IOException, InterruptedException {
+            while (true) {
+                final Chunk chunk = filled.take();
+                if (chunk == END) {
+                    return;
+                }
+
+                out.write(chunk.bytes, 0, chunk.length);
+                recycle(chunk.bytes);
+            }
+        }
+
+    }
+
+    private static void dump(Output o, Set<Listing> listings) {
+        try (RandomAccessFile f = new RandomAccessFile(o.file, "r")) {
+            final MachO macho = new MachO();
+            if (f.length() < 4 || !macho.supported(f)) {
+                o.fail("unsupported format");
+                return;
+            }
+
+            final BinaryObject b = macho.load(f);
+            if (listings.contains(Listing.COMMANDS)) {
+                int index = 0;
+                for (Segment s : b.segments()) {
+                    o.record("command");
+                    o.field("index", index++);
+                    o.hexField("cmd", s.cmd() & 0xffffffffL);
+                    o.field("cmdsize", s.cmdsize() & 0xffffffffL);
+                    o.field("type", s.type());
+                    o.end();
+                }
+            }
+
+            if (listings.contains(Listing.SEGMENTS)) {
+                for (Segment s : b.segments()) {
+                    if (s instanceof MappedSegment) {
+                        final MappedSegment m = (MappedSegment)s;
+                        o.record("segment");
+                        o.field("segname", m.segname());
+                        o.hexField("vmaddr", m.vmaddr());
+                        o.field("vmsize", m.vmsize());
+                        o.field("fileoff", m.fileoff());
+                        o.field("filesize", m.filesize());
+                        o.field("nsects", m.nsects());
+                        o.end();
+                    }
+                }
+            }
+
+            if (listings.contains(Listing.SYMBOLS)) {
+                b.symbols((buffer, offset, length, type, value) -> {
+                    o.record("symbol");
+                    o.field("name", buffer, offset, length);
+                    o.hexField("type", type);
+                    o.hexField("value", value);
+                    o.end();
+                });
+            }
+
+            if (listings.contains(Listing.DEPENDENCIES)) {
+                for (String name : b.dependencies()) {
+                    o.record("dependency");
+                    o.field("name", name);
+                    o.end();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            o.fail(e.getMessage() == null ? e.toString() : e.getMessage());
+        } finally {
+            o.finish();
+        }
+    }
+
+    /**
+     * Dumps files in the order given, working on up to the given number at once. Errors are reported on err as each file's
+     * output is reached.
+     *
+     * @return true if any file failed
+     */
+    static boolean run(List<String> files, Format format, Set<Listing> listings, int threads, OutputStream out,
+                       PrintStream err) throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "executable worker");
+            t.setDaemon(true);
+            return t;
+        });
+        final Deque<Output> pending = new ArrayDeque<>();
+        int next = 0;
+        boolean failed = false;
+        try {
+            while (next < files.size() || !pending.isEmpty()) {
+                while (next < files.size() && pending.size() < threads * 2) {
+                    final Output o = new Output(format, files.get(next++));
+                    pending.add(o);
+                    o.task = pool.submit(() -> dump(o, listings));
+                }
+
+                final Output o = pending.remove();
+                o.writeTo(out);
+                try {
+                    o.task.get();
+                } catch (ExecutionException e) {
+                    // Only an Error, such as running out of memory, gets out of dump; the run cannot go on after it.
+                    out.flush();
+                    if (e.getCause() instanceof Error) {
+                        throw (Error)e.getCause();
+                    }
+
+                    throw new IllegalStateException(e.getCause());
+                }
+
+                if (o.error != null) {
+                    out.flush();
+                    err.println(o.file + ": " + o.error);
+                    failed = true;
+                }
+            }
+
+            out.flush();
+        } finally {
+            pool.shutdown();
+        }
+
+        return failed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Format format = Format.JSONL;
+        final Set<Listing> listings = EnumSet.noneOf(Listing.class);
+        int threads = Runtime.getRuntime().availableProcessors();
+        final List<String> files = new ArrayList<>();
+        boolean options = true;
+        for (int x = 0; x < args.length; x++) {
+            final String arg = args[x];
+            if (options && arg.equals("--")) {
+                options = false;
+            } else if (options && arg.equals("-l")) {
+                listings.add(Listing.COMMANDS);
+            } else if (options && arg.equals("-s")) {
+                listings.add(Listing.SEGMENTS);
+            } else if (options && arg.equals("-n")) {
+                listings.add(Listing.SYMBOLS);
+            } else if (options && arg.equals("-d")) {
+                listings.add(Listing.DEPENDENCIES);
+            } else if (options && arg.equals("--tsv")) {
+                format = Format.TSV;
+            } else if (options && arg.equals("--jsonl")) {
+                format = Format.JSONL;
+            } else if (options && arg.equals("-j") && x + 1 < args.length) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++x]));
+                } catch (NumberFormatException e) {
+                    System.err.print(USAGE);
+                    System.exit(2);
+                }
+            } else if (options && arg.startsWith("-") && arg.length() > 1) {
+                System.err.print(USAGE);
+                System.exit(2);
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        if (listings.isEmpty()) {
+            listings.addAll(EnumSet.allOf(Listing.class));
+        }
+
+        try {
+            System.exit(run(files, format, listings, threads, new FileOutputStream(FileDescriptor.out), System.err) ? 1 : 0);
+        } catch (IOException e) {
+            // The reader went away, as when piping into head.
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/* 
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+/**
+ * A segment that is mapped into the address space of a process.
+ */
+public interface MappedSegment extends Segment {
+
+    String segname();
+
+    long vmaddr();
+
+    long vmsize();
+
+    long fileoff();
+
+    long filesize();
+
+    int nsects();
+
+}
@@ -26,4 +26,19 @@ public interface Segment {
 
     void disassemble(PrintWriter writer);
 
+    /**
+     * @return the load command type
+     */
+    int cmd();
+
+    /**
+     * @return the size of the load command in bytes
+     */
+    int cmdsize();
+
+    /**
+     * @return the symbolic name of the load command type, such as LC_SEGMENT_64, or null if it is not known
+     */
+    String type();
+
 }
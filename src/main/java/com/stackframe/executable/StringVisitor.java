@@ -0,0 +1,43 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the string literals embedded in a binary. Strings are passed as views into the mapped file; the buffer is only
+ * valid for the duration of the call and must not be modified.
+ */
+public interface StringVisitor {
+
+    enum Source {
+        CSTRING, /* NUL terminated, from __TEXT,__cstring */
+        OBJC_METHNAME, /* NUL terminated, from __TEXT,__objc_methname */
+        CFSTRING, /* bytes of a constant CFString literal from __cfstring */
+        CFSTRING_UTF16 /* UTF-16 code units of a constant CFString literal from __cfstring */
+    }
+
+    /**
+     * @param source where the string was found
+     * @param buffer the buffer holding the string
+     * @param offset the absolute position of the string in the buffer
+     * @param length the length of the string in bytes, not including any terminating NUL
+     */
+    void visit(Source source, ByteBuffer buffer, int offset, int length);
+
+}
@@ -0,0 +1,37 @@
+/* 
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the entries of the symbol table of a binary. Names are passed as views into the mapped file; the buffer is only
+ * valid for the duration of the call and must not be modified.
+ */
+public interface SymbolVisitor {
+
+    /**
+     * @param buffer the buffer holding the name
+     * @param offset the absolute position of the name in the buffer
+     * @param length the length of the name in bytes
+     * @param type the type of the symbol, n_type in Mach-O
+     * @param value the value of the symbol, usually its address
+     */
+    void visit(ByteBuffer buffer, int offset, int length, int type, long value);
+
+}
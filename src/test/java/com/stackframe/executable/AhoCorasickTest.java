@@ -0,0 +1,140 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AhoCorasickTest {
+
+    /**
+     * @return the matches as "pattern@start-end", in the order they were reported
+     */
+    private static List<String> matches(AhoCorasick matcher, ByteBuffer buffer, int offset, int length) {
+        final List<String> matches = new ArrayList<>();
+        final int count = matcher.match(buffer, offset, length,
+                                        (pattern, start, end) -> matches.add(pattern + "@" + start + "-" + end));
+        assertEquals(matches.size(), count);
+        return matches;
+    }
+
+    private static List<String> matches(AhoCorasick matcher, String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return matches(matcher, ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Finds every occurrence of every pattern by comparing at each position, ordered like the matcher reports them.
+     */
+    private static List<String> naive(byte[][] patterns, byte[] text, int offset, int length) {
+        final List<int[]> found = new ArrayList<>();
+        for (int end = offset + 1; end <= offset + length; end++) {
+            for (int p = 0; p < patterns.length; p++) {
+                final int start = end - patterns[p].length;
+                if (start >= offset &&
+                    Arrays.equals(Arrays.copyOfRange(text, start, end), patterns[p])) {
+                    found.add(new int[]{p, start, end});
+                }
+            }
+        }
+
+        // At the same end position, longer matches are reported first and identical patterns by descending index.
+        Collections.sort(found, (a, b) -> a[2] != b[2] ? a[2] - b[2] : a[1] != b[1] ? a[1] - b[1] : b[0] - a[0]);
+        final List<String> matches = new ArrayList<>();
+        for (int[] m : found) {
+            matches.add(m[0] + "@" + m[1] + "-" + m[2]);
+        }
+
+        return matches;
+    }
+
+    @Test
+    public void overlapping() {
+        final AhoCorasick matcher = AhoCorasick.of("he", "she", "his", "hers");
+        assertEquals(Arrays.asList("1@1-4", "0@2-4", "3@2-6"), matches(matcher, "ushers"));
+        assertEquals(Arrays.asList("2@0-3", "1@3-6", "0@4-6"), matches(matcher, "hisshe"));
+    }
+
+    @Test
+    public void dictionaryLinks() {
+        // Reaching "aaa" also ends "aa" and "a", which are only found through the dictionary links.
+        final AhoCorasick matcher = AhoCorasick.of("a", "aa", "aaa", "b");
+        assertEquals(Arrays.asList("0@0-1", "1@0-2", "0@1-2", "2@0-3", "1@1-3", "0@2-3", "3@3-4"), matches(matcher, "aaab"));
+    }
+
+    @Test
+    public void duplicatePatterns() {
+        final AhoCorasick matcher = AhoCorasick.of("abc", "bc", "abc");
+        assertEquals(Arrays.asList("2@1-4", "0@1-4", "1@2-4"), matches(matcher, "xabc"));
+    }
+
+    @Test
+    public void region() {
+        final AhoCorasick matcher = AhoCorasick.of("ab");
+        final ByteBuffer buffer = ByteBuffer.wrap("abababab".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(Arrays.asList("0@2-4", "0@4-6"), matches(matcher, buffer, 1, 6));
+        assertEquals(Collections.emptyList(), matches(matcher, buffer, 3, 0));
+    }
+
+    @Test
+    public void highBytes() {
+        final AhoCorasick matcher = new AhoCorasick(new byte[][]{{(byte)0xff, 0}, {(byte)0x80}});
+        final byte[] text = {0x7f, (byte)0x80, (byte)0xff, 0, (byte)0xff};
+        assertEquals(Arrays.asList("1@1-2", "0@2-4"), matches(matcher, ByteBuffer.wrap(text), 0, text.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPattern() {
+        AhoCorasick.of("a", "");
+    }
+
+    @Test
+    public void randomAgainstNaive() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            // A small alphabet gives many overlapping and repeated matches.
+            final int alphabet = 2 + random.nextInt(3);
+            final byte[][] patterns = new byte[1 + random.nextInt(8)][];
+            for (int p = 0; p < patterns.length; p++) {
+                patterns[p] = new byte[1 + random.nextInt(5)];
+                for (int x = 0; x < patterns[p].length; x++) {
+                    patterns[p][x] = (byte)('a' + random.nextInt(alphabet));
+                }
+            }
+
+            final byte[] text = new byte[random.nextInt(200)];
+            for (int x = 0; x < text.length; x++) {
+                text[x] = (byte)('a' + random.nextInt(alphabet));
+            }
+
+            final int offset = text.length == 0 ? 0 : random.nextInt(text.length);
+            final int length = text.length - offset == 0 ? 0 : random.nextInt(text.length - offset + 1);
+            final List<String> expected = naive(patterns, text, offset, length);
+            assertEquals("round " + round, expected, matches(new AhoCorasick(patterns), ByteBuffer.wrap(text), offset, length));
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds little endian binary data for test fixtures.
+ */
+class Bytes {
+
+    private byte[] bytes = new byte[64];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    Bytes u8(int v) {
+        if (size == bytes.length) {
+            bytes = Arrays.copyOf(bytes, size * 2);
+        }
+
+        bytes[size++] = (byte)v;
+        return this;
+    }
+
+    Bytes u16(int v) {
+        return u8(v).u8(v >>> 8);
+    }
+
+    Bytes u32(long v) {
+        return u16((int)v).u16((int)(v >>> 16));
+    }
+
+    Bytes u64(long v) {
+        return u32(v).u32(v >>> 32);
+    }
+
+    Bytes uleb(long v) {
+        do {
+            final int b = (int)(v & 0x7f);
+            v >>>= 7;
+            u8(v == 0 ? b : b | 0x80);
+        } while (v != 0);
+
+        return this;
+    }
+
+    Bytes sleb(long v) {
+        while (true) {
+            final int b = (int)(v & 0x7f);
+            v >>= 7;
+            if ((v == 0 && (b & 0x40) == 0) || (v == -1 && (b & 0x40) != 0)) {
+                return u8(b);
+            }
+
+            u8(b | 0x80);
+        }
+    }
+
+    Bytes bytes(byte[] v) {
+        for (byte b : v) {
+            u8(b);
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends a string as UTF-8 followed by a NUL.
+     */
+    Bytes cstr(String v) {
+        return bytes(v.getBytes(StandardCharsets.UTF_8)).u8(0);
+    }
+
+    /**
+     * Appends a string as UTF-8, padded with NULs or truncated to a fixed length.
+     */
+    Bytes name(String v, int length) {
+        return bytes(Arrays.copyOf(v.getBytes(StandardCharsets.UTF_8), length));
+    }
+
+    Bytes align(int alignment) {
+        while (size % alignment != 0) {
+            u8(0);
+        }
+
+        return this;
+    }
+
+    /**
+     * Overwrites a 32 bit value that was written earlier, such as a length that is known only once what follows it is.
+     */
+    Bytes patch32(int position, long v) {
+        for (int x = 0; x < 4; x++) {
+            bytes[position + x] = (byte)(v >>> (x * 8));
+        }
+
+        return this;
+    }
+
+    /**
+     * Overwrites the 32 bit value at a position with the number of bytes that follow it.
+     */
+    Bytes patchLength(int position) {
+        return patch32(position, size - position - 4);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+}
@@ -0,0 +1,401 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DWARFTest {
+
+    private static final int DW_TAG_compile_unit = 0x11;
+    private static final int DW_AT_name = 0x03;
+    private static final int DW_AT_stmt_list = 0x10;
+    private static final int DW_AT_low_pc = 0x11;
+    private static final int DW_AT_comp_dir = 0x1b;
+    private static final int DW_AT_producer = 0x25;
+    private static final int DW_AT_ranges = 0x55;
+    private static final int DW_FORM_addr = 0x01;
+    private static final int DW_FORM_data4 = 0x06;
+    private static final int DW_FORM_string = 0x08;
+    private static final int DW_FORM_block = 0x09;
+    private static final int DW_FORM_strp = 0x0e;
+    private static final int DW_FORM_udata = 0x0f;
+    private static final int DW_FORM_sec_offset = 0x17;
+    private static final int DW_FORM_line_strp = 0x1f;
+    private static final int DW_LNS_copy = 0x01;
+    private static final int DW_LNS_advance_pc = 0x02;
+    private static final int DW_LNS_advance_line = 0x03;
+    private static final int DW_LNS_set_file = 0x04;
+    private static final int DW_LNS_set_column = 0x05;
+    private static final int DW_LNS_const_add_pc = 0x08;
+    private static final int DW_LNS_fixed_advance_pc = 0x09;
+    private static final int DW_LNE_end_sequence = 0x01;
+    private static final int DW_LNE_set_address = 0x02;
+    private static final int DW_LNCT_path = 0x1;
+    private static final int DW_LNCT_directory_index = 0x2;
+    private static final int DW_RLE_end_of_list = 0x00;
+    private static final int DW_RLE_offset_pair = 0x04;
+    private static final int DW_RLE_base_address = 0x05;
+    private static final int DW_RLE_start_end = 0x06;
+    private static final int DW_RLE_start_length = 0x07;
+
+    private static final int LINE_BASE = -5;
+    private static final int LINE_RANGE = 14;
+    private static final int OPCODE_BASE = 13;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void setAddress(Bytes b, long address) {
+        b.u8(0).uleb(9).u8(DW_LNE_set_address).u64(address);
+    }
+
+    private static void endSequence(Bytes b) {
+        b.u8(0).uleb(1).u8(DW_LNE_end_sequence);
+    }
+
+    private static void special(Bytes b, int addressAdvance, int lineAdvance) {
+        b.u8((lineAdvance - LINE_BASE) + LINE_RANGE * addressAdvance + OPCODE_BASE);
+    }
+
+    /**
+     * Writes the part of a line table header from minimum_instruction_length through standard_opcode_lengths.
+     */
+    private static void lineParameters(Bytes b, int version) {
+        b.u8(1);
+        if (version >= 4) {
+            b.u8(1);
+        }
+
+        b.u8(1).u8(LINE_BASE).u8(LINE_RANGE).u8(OPCODE_BASE);
+        b.u8(0).u8(1).u8(1).u8(1).u8(1).u8(0).u8(0).u8(0).u8(1).u8(0).u8(0).u8(1);
+    }
+
+    private DWARF load(MachOFixture fixture) throws IOException {
+        return DWARF.load(MachOFixture.load(folder.getRoot(), fixture.build()));
+    }
+
+    /**
+     * A version 4 unit whose extent is given by __debug_ranges, with sequences out of address order and files in the
+     * compilation directory, an include directory and an absolute path.
+     */
+    private static MachOFixture version4() {
+        final Bytes abbrev = new Bytes();
+        abbrev.uleb(1).uleb(DW_TAG_compile_unit).u8(0)
+                .uleb(DW_AT_producer).uleb(DW_FORM_string)
+                .uleb(DW_AT_name).uleb(DW_FORM_strp)
+                .uleb(DW_AT_comp_dir).uleb(DW_FORM_strp)
+                .uleb(DW_AT_stmt_list).uleb(DW_FORM_sec_offset)
+                .uleb(DW_AT_low_pc).uleb(DW_FORM_addr)
+                .uleb(DW_AT_ranges).uleb(DW_FORM_sec_offset)
+                .uleb(0).uleb(0).uleb(0);
+
+        final Bytes str = new Bytes().cstr("a.c").cstr("/work");
+
+        final Bytes info = new Bytes().u32(0);
+        info.u16(4).u32(0).u8(8);
+        info.uleb(1).cstr("test").u32(0).u32(4).u32(0).u64(0).u32(0);
+        info.patchLength(0);
+
+        final Bytes ranges = new Bytes();
+        ranges.u64(0x1000).u64(0x1010);
+        ranges.u64(0x2000).u64(0x2008);
+        ranges.u64(-1L).u64(0x3000);
+        ranges.u64(0).u64(4);
+        ranges.u64(0).u64(0);
+
+        final Bytes line = new Bytes().u32(0);
+        line.u16(4).u32(0);
+        final int headerStart = line.size();
+        lineParameters(line, 4);
+        line.cstr("/usr/include").u8(0);
+        line.cstr("a.c").uleb(0).uleb(0).uleb(0);
+        line.cstr("b.h").uleb(1).uleb(0).uleb(0);
+        line.cstr("/abs/c.h").uleb(0).uleb(0).uleb(0);
+        line.u8(0);
+        line.patch32(headerStart - 4, line.size() - headerStart);
+
+        setAddress(line, 0x2000);
+        line.u8(DW_LNS_advance_line).sleb(9);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_set_column).uleb(7);
+        special(line, 4, 1);
+        line.u8(DW_LNS_advance_pc).uleb(4);
+        endSequence(line);
+
+        setAddress(line, 0x1000);
+        line.u8(DW_LNS_set_file).uleb(2);
+        line.u8(DW_LNS_advance_line).sleb(19);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_fixed_advance_pc).u16(8);
+        line.u8(DW_LNS_set_file).uleb(3);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_advance_pc).uleb(8);
+        endSequence(line);
+
+        setAddress(line, 0x3000);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_advance_pc).uleb(4);
+        endSequence(line);
+        line.patchLength(0);
+
+        return new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, new byte[16])
+                .section("__DWARF", "__debug_abbrev", 0, abbrev.toByteArray())
+                .section("__DWARF", "__debug_info", 0, info.toByteArray())
+                .section("__DWARF", "__debug_str", 0, str.toByteArray())
+                .section("__DWARF", "__debug_ranges", 0, ranges.toByteArray())
+                .section("__DWARF", "__debug_line", 0, line.toByteArray());
+    }
+
+    @Test
+    public void lookupVersion4() throws IOException {
+        final DWARF dwarf = load(version4());
+        assertEquals(1, dwarf.compileUnits());
+        assertEquals("/work/a.c:10", dwarf.lookup(0x2000).toString());
+        assertEquals("/work/a.c:11", dwarf.lookup(0x2006).toString());
+        assertNull(dwarf.lookup(0x2008));
+        assertEquals("/usr/include/b.h:20", dwarf.lookup(0x1000).toString());
+        assertEquals("/usr/include/b.h:20", dwarf.lookup(0x1007).toString());
+        assertEquals("/abs/c.h:20", dwarf.lookup(0x100f).toString());
+        assertNull(dwarf.lookup(0x1010));
+        assertEquals("/work/a.c:1", dwarf.lookup(0x3003).toString());
+        assertNull(dwarf.lookup(0xfff));
+        assertNull(dwarf.lookup(0x1800));
+        assertNull(dwarf.lookup(0x3004));
+    }
+
+    @Test
+    public void batchLookup() throws IOException {
+        final DWARF dwarf = load(version4());
+        final long[] addresses = {0x1000, 0x1008, 0x2004, 0x5000, 0x2000, 0x3000};
+        final String[] files = new String[addresses.length];
+        final int[] lines = new int[addresses.length];
+        assertEquals(5, dwarf.lookup(addresses, files, lines));
+        assertArrayEquals(new String[]{"/usr/include/b.h", "/abs/c.h", "/work/a.c", null, "/work/a.c", "/work/a.c"}, files);
+        assertArrayEquals(new int[]{20, 20, 11, 0, 10, 1}, lines);
+    }
+
+    /**
+     * A version 2 unit without any address attributes, which is indexed by the sequences of its line table.
+     */
+    @Test
+    public void unitWithoutRanges() throws IOException {
+        final Bytes program = new Bytes();
+        setAddress(program, 0x4000);
+        program.u8(DW_LNS_copy);
+        program.u8(DW_LNS_const_add_pc);
+        special(program, 0, 2);
+        program.u8(DW_LNS_advance_pc).uleb(3);
+        endSequence(program);
+
+        final DWARF dwarf = load(version2(program));
+        assertEquals(1, dwarf.compileUnits());
+        assertEquals("/src/main.c:1", dwarf.lookup(0x4000).toString());
+        assertEquals("/src/main.c:1", dwarf.lookup(0x4010).toString());
+        assertEquals("/src/main.c:3", dwarf.lookup(0x4011).toString());
+        assertEquals("/src/main.c:3", dwarf.lookup(0x4013).toString());
+        assertNull(dwarf.lookup(0x4014));
+        assertNull(dwarf.lookup(0x3fff));
+    }
+
+    /**
+     * A version 2 unit without any address attributes, whose line table is decoded as soon as it is loaded.
+     */
+    private static MachOFixture version2(Bytes program) {
+        final Bytes abbrev = new Bytes();
+        abbrev.uleb(1).uleb(DW_TAG_compile_unit).u8(0)
+                .uleb(DW_AT_stmt_list).uleb(DW_FORM_data4)
+                .uleb(DW_AT_comp_dir).uleb(DW_FORM_string)
+                .uleb(0).uleb(0).uleb(0);
+
+        final Bytes info = new Bytes().u32(0);
+        info.u16(2).u32(0).u8(8);
+        info.uleb(1).u32(0).cstr("/src");
+        info.patchLength(0);
+
+        final Bytes line = new Bytes().u32(0);
+        line.u16(2).u32(0);
+        final int headerStart = line.size();
+        lineParameters(line, 2);
+        line.u8(0);
+        line.cstr("main.c").uleb(0).uleb(0).uleb(0);
+        line.u8(0);
+        line.patch32(headerStart - 4, line.size() - headerStart);
+        line.bytes(program.toByteArray());
+        line.patchLength(0);
+
+        return new MachOFixture()
+                .section("__DWARF", "__debug_abbrev", 0, abbrev.toByteArray())
+                .section("__DWARF", "__debug_info", 0, info.toByteArray())
+                .section("__DWARF", "__debug_line", 0, line.toByteArray());
+    }
+
+    private void assertInvalid(MachOFixture fixture, String message) throws IOException {
+        try {
+            load(fixture);
+            fail("expected InvalidObjectException");
+        } catch (InvalidObjectException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    /**
+     * An extended opcode length that would wrap when narrowed to an int must not move the decoder backwards.
+     */
+    @Test(timeout = 5000)
+    public void extendedOpcodeLengthPastEnd() throws IOException {
+        final Bytes program = new Bytes();
+        setAddress(program, 0x4000);
+        program.u8(DW_LNS_copy);
+        program.u8(0).uleb(0x100000000L - 6).u8(DW_LNE_end_sequence);
+        assertInvalid(version2(program), "invalid extended opcode length");
+    }
+
+    @Test(timeout = 5000)
+    public void extendedOpcodeLengthZero() throws IOException {
+        final Bytes program = new Bytes();
+        program.u8(0).uleb(0);
+        endSequence(program);
+        assertInvalid(version2(program), "invalid extended opcode length");
+    }
+
+    @Test(timeout = 5000)
+    public void blockLengthPastEnd() throws IOException {
+        final Bytes abbrev = new Bytes();
+        abbrev.uleb(1).uleb(DW_TAG_compile_unit).u8(0)
+                .uleb(DW_AT_producer).uleb(DW_FORM_block)
+                .uleb(DW_AT_stmt_list).uleb(DW_FORM_data4)
+                .uleb(0).uleb(0).uleb(0);
+
+        final Bytes info = new Bytes().u32(0);
+        info.u16(2).u32(0).u8(8);
+        info.uleb(1).uleb(-16L).u32(0);
+        info.patchLength(0);
+
+        assertInvalid(new MachOFixture()
+                .section("__DWARF", "__debug_abbrev", 0, abbrev.toByteArray())
+                .section("__DWARF", "__debug_info", 0, info.toByteArray())
+                .section("__DWARF", "__debug_line", 0, new byte[16]), "truncated __debug_info");
+    }
+
+    @Test(timeout = 5000)
+    public void unitLengthTooShort() throws IOException {
+        // A unit_length of 0 does not even cover the version that follows it.
+        final Bytes info = new Bytes().u32(0).u16(2).u32(0).u8(8);
+        assertInvalid(new MachOFixture()
+                .section("__DWARF", "__debug_abbrev", 0, new byte[1])
+                .section("__DWARF", "__debug_info", 0, info.toByteArray())
+                .section("__DWARF", "__debug_line", 0, new byte[16]), "invalid unit length");
+    }
+
+    /**
+     * A version 5 unit with __debug_rnglists, strings in __debug_line_str and zero based file numbers.
+     */
+    @Test
+    public void lookupVersion5() throws IOException {
+        final Bytes abbrev = new Bytes();
+        abbrev.uleb(1).uleb(DW_TAG_compile_unit).u8(0)
+                .uleb(DW_AT_comp_dir).uleb(DW_FORM_line_strp)
+                .uleb(DW_AT_stmt_list).uleb(DW_FORM_sec_offset)
+                .uleb(DW_AT_low_pc).uleb(DW_FORM_addr)
+                .uleb(DW_AT_ranges).uleb(DW_FORM_sec_offset)
+                .uleb(0).uleb(0).uleb(0);
+
+        final Bytes lineStr = new Bytes().cstr("/v5").cstr("/v5/inc");
+
+        final Bytes info = new Bytes().u32(0);
+        info.u16(5).u8(1).u8(8).u32(0);
+        info.uleb(1).u32(0).u32(0).u64(0x5000).u32(12);
+        info.patchLength(0);
+
+        final Bytes rnglists = new Bytes().u32(0);
+        rnglists.u16(5).u8(8).u8(0).u32(0);
+        rnglists.u8(DW_RLE_offset_pair).uleb(0).uleb(0x10);
+        rnglists.u8(DW_RLE_start_length).u64(0x6000).uleb(8);
+        rnglists.u8(DW_RLE_base_address).u64(0x7000);
+        rnglists.u8(DW_RLE_offset_pair).uleb(0).uleb(4);
+        rnglists.u8(DW_RLE_start_end).u64(0x8000).u64(0x8004);
+        rnglists.u8(DW_RLE_end_of_list);
+        rnglists.patchLength(0);
+
+        final Bytes line = new Bytes().u32(0);
+        line.u16(5).u8(8).u8(0).u32(0);
+        final int headerStart = line.size();
+        lineParameters(line, 5);
+        line.u8(1).uleb(DW_LNCT_path).uleb(DW_FORM_line_strp);
+        line.uleb(2).u32(0).u32(4);
+        line.u8(2).uleb(DW_LNCT_path).uleb(DW_FORM_string).uleb(DW_LNCT_directory_index).uleb(DW_FORM_udata);
+        line.uleb(2).cstr("main.c").uleb(0).cstr("util.h").uleb(1);
+        line.patch32(headerStart - 4, line.size() - headerStart);
+
+        setAddress(line, 0x5000);
+        line.u8(DW_LNS_set_file).uleb(0);
+        line.u8(DW_LNS_copy);
+        special(line, 8, 4);
+        line.u8(DW_LNS_advance_pc).uleb(8);
+        endSequence(line);
+
+        setAddress(line, 0x6000);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_advance_pc).uleb(8);
+        endSequence(line);
+
+        setAddress(line, 0x7000);
+        line.u8(DW_LNS_advance_line).sleb(99);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_advance_pc).uleb(0x1000);
+        line.u8(DW_LNS_advance_line).sleb(1);
+        line.u8(DW_LNS_copy);
+        line.u8(DW_LNS_advance_pc).uleb(4);
+        endSequence(line);
+        line.patchLength(0);
+
+        final DWARF dwarf = load(new MachOFixture()
+                .section("__DWARF", "__debug_abbrev", 0, abbrev.toByteArray())
+                .section("__DWARF", "__debug_info", 0, info.toByteArray())
+                .section("__DWARF", "__debug_line_str", 0, lineStr.toByteArray())
+                .section("__DWARF", "__debug_rnglists", 0, rnglists.toByteArray())
+                .section("__DWARF", "__debug_line", 0, line.toByteArray()));
+        assertEquals(1, dwarf.compileUnits());
+        assertEquals("/v5/main.c:1", dwarf.lookup(0x5007).toString());
+        assertEquals("/v5/main.c:5", dwarf.lookup(0x5008).toString());
+        assertNull(dwarf.lookup(0x5010));
+        assertEquals("/v5/inc/util.h:1", dwarf.lookup(0x6007).toString());
+        assertEquals("/v5/inc/util.h:100", dwarf.lookup(0x7003).toString());
+        assertNull("covered by the line table but not by the unit", dwarf.lookup(0x7800));
+        assertEquals("/v5/inc/util.h:101", dwarf.lookup(0x8002).toString());
+        assertNull(dwarf.lookup(0x8004));
+    }
+
+    @Test
+    public void missingSections() throws IOException {
+        assertNull(DWARF.load(MachOFixture.load(folder.getRoot(), new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, new byte[16]).build())));
+    }
+
+}
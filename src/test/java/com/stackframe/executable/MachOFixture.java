@@ -0,0 +1,207 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds small 64 bit little endian Mach-O files for tests. Sections are grouped into one segment per segment name, in the
+ * order they were added, or into a single unnamed segment as in an object file. The symbol table follows the segment
+ * contents and is not covered by any segment.
+ */
+class MachOFixture {
+
+    private static final int LC_SEGMENT_64 = 0x19;
+    private static final int LC_SYMTAB = 0x2;
+    private static final int LC_UUID = 0x1b;
+    private static final int LC_LOAD_DYLIB = 0xc;
+
+    private static class Section {
+
+        private final String segname;
+        private final String sectname;
+        private final long addr;
+        private final byte[] contents;
+
+        Section(String segname, String sectname, long addr, byte[] contents) {
+            this.segname = segname;
+            this.sectname = sectname;
+            this.addr = addr;
+            this.contents = contents;
+        }
+
+    }
+
+    private final List<Section> sections = new ArrayList<>();
+    private final List<byte[]> symbols = new ArrayList<>();
+    private final List<String> dylibs = new ArrayList<>();
+    private byte[] uuid;
+    private boolean object;
+    private final Map<String, Integer> segmentCommands = new HashMap<>();
+
+    /**
+     * Puts all sections in a single unnamed segment, as in an MH_OBJECT file.
+     */
+    MachOFixture object() {
+        object = true;
+        return this;
+    }
+
+    MachOFixture section(String segname, String sectname, long addr, byte[] contents) {
+        sections.add(new Section(segname, sectname, addr, contents));
+        return this;
+    }
+
+    MachOFixture symbol(byte[] name) {
+        symbols.add(name);
+        return this;
+    }
+
+    MachOFixture symbol(String name) {
+        return symbol(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    MachOFixture uuid(int fill) {
+        uuid = new byte[16];
+        for (int x = 0; x < uuid.length; x++) {
+            uuid[x] = (byte)fill;
+        }
+
+        return this;
+    }
+
+    MachOFixture dylib(String name) {
+        dylibs.add(name);
+        return this;
+    }
+
+    /**
+     * @return the file offset of the segment command for a segment in the file last built
+     */
+    int segmentCommand(String segname) {
+        return segmentCommands.get(segname);
+    }
+
+    byte[] build() {
+        final Map<String, List<Section>> segments = new LinkedHashMap<>();
+        for (Section s : sections) {
+            final String segname = object ? "" : s.segname;
+            if (!segments.containsKey(segname)) {
+                segments.put(segname, new ArrayList<Section>());
+            }
+
+            segments.get(segname).add(s);
+        }
+
+        int sizeofcmds = 24;
+        for (List<Section> s : segments.values()) {
+            sizeofcmds += 72 + 80 * s.size();
+        }
+
+        if (uuid != null) {
+            sizeofcmds += 24;
+        }
+
+        for (String name : dylibs) {
+            sizeofcmds += dylibSize(name);
+        }
+
+        // Lay out the file contents after the load commands.
+        int offset = (32 + sizeofcmds + 15) & ~15;
+        final Bytes data = new Bytes();
+        final Bytes commands = new Bytes();
+        int ncmds = 0;
+        for (Map.Entry<String, List<Section>> e : segments.entrySet()) {
+            final int fileoff = offset + data.size();
+            long vmaddr = Long.MAX_VALUE;
+            long vmend = 0;
+            final Bytes sectionHeaders = new Bytes();
+            for (Section s : e.getValue()) {
+                final int sectionOffset = offset + data.size();
+                data.bytes(s.contents).align(8);
+                sectionHeaders.name(s.sectname, 16).name(s.segname, 16).u64(s.addr).u64(s.contents.length)
+                        .u32(sectionOffset).u32(0).u32(0).u32(0).u32(0).u32(0).u32(0).u32(0);
+                vmaddr = Math.min(vmaddr, s.addr);
+                vmend = Math.max(vmend, s.addr + s.contents.length);
+            }
+
+            segmentCommands.put(e.getKey(), 32 + commands.size());
+            commands.u32(LC_SEGMENT_64).u32(72 + 80 * e.getValue().size()).name(e.getKey(), 16).u64(vmaddr).u64(vmend - vmaddr)
+                    .u64(fileoff).u64(offset + data.size() - fileoff).u32(7).u32(7).u32(e.getValue().size()).u32(0)
+                    .bytes(sectionHeaders.toByteArray());
+            ncmds++;
+        }
+
+        final Bytes strings = new Bytes().u8(' ').u8(0);
+        final int symoff = offset + data.size();
+        for (int x = 0; x < symbols.size(); x++) {
+            data.u32(strings.size()).u8(0x0f).u8(1).u16(0).u64(0x1000 + x * 4);
+            strings.bytes(symbols.get(x)).u8(0);
+        }
+
+        final int stroff = offset + data.size();
+        data.bytes(strings.toByteArray());
+        commands.u32(LC_SYMTAB).u32(24).u32(symoff).u32(symbols.size()).u32(stroff).u32(strings.size());
+        ncmds++;
+
+        if (uuid != null) {
+            commands.u32(LC_UUID).u32(24).bytes(uuid);
+            ncmds++;
+        }
+
+        for (String name : dylibs) {
+            commands.u32(LC_LOAD_DYLIB).u32(dylibSize(name)).u32(24).u32(2).u32(0x10000).u32(0x10000).cstr(name).align(8);
+            ncmds++;
+        }
+
+        final Bytes file = new Bytes();
+        file.u32(0xfeedfacfL).u32(0x01000007).u32(3).u32(object ? 1 : 2).u32(ncmds).u32(sizeofcmds).u32(0).u32(0);
+        file.bytes(commands.toByteArray()).align(16).bytes(data.toByteArray());
+        return file.toByteArray();
+    }
+
+    private static int dylibSize(String name) {
+        return (24 + name.getBytes(StandardCharsets.UTF_8).length + 1 + 7) & ~7;
+    }
+
+    static BinaryObject load(File file) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            return new MachO().load(f);
+        }
+    }
+
+    static File write(File directory, byte[] contents) throws IOException {
+        final File file = File.createTempFile("macho", ".bin", directory);
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    static BinaryObject load(File directory, byte[] contents) throws IOException {
+        return load(write(directory, contents));
+    }
+
+}
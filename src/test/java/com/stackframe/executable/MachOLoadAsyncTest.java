@@ -0,0 +1,260 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class MachOLoadAsyncTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService pool;
+
+    /**
+     * Holds back the parsing of the load commands, which CompletableFuture submits as an asynchronous completion task, until
+     * the test releases it. Other tasks, such as closing the file and firing a timeout, are run at once or rejected.
+     */
+    private static class HoldingExecutor implements Executor {
+
+        private final BlockingQueue<Runnable> held = new LinkedBlockingQueue<>();
+        private final boolean reject;
+
+        HoldingExecutor(boolean reject) {
+            this.reject = reject;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (task instanceof CompletableFuture.AsynchronousCompletionTask) {
+                held.add(task);
+            } else if (reject) {
+                throw new RejectedExecutionException();
+            } else {
+                task.run();
+            }
+        }
+
+        Runnable awaitHeld() throws InterruptedException {
+            final Runnable task = held.poll(5, TimeUnit.SECONDS);
+            assertNotNull("the reads did not complete", task);
+            return task;
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private Path write(byte[] contents) throws IOException {
+        return MachOFixture.write(folder.getRoot(), contents).toPath();
+    }
+
+    private Path binary() throws IOException {
+        return write(new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, "code".getBytes(StandardCharsets.US_ASCII))
+                .symbol("_main").symbol("_helper")
+                .build());
+    }
+
+    private static Throwable failure(CompletableFuture<BinaryObject> future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected the load to fail");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            throw new AssertionError("the load did not complete", e);
+        }
+    }
+
+    private static long openFiles() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        assumeTrue(os instanceof UnixOperatingSystemMXBean);
+        return ((UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount();
+    }
+
+    /**
+     * Waits for files closed on another thread.
+     */
+    private static void awaitOpenFiles(long expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (openFiles() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expected, openFiles());
+    }
+
+    /**
+     * @return the number of open files once the classes and threads used by a load exist
+     */
+    private static long baseline(Path path) throws Exception {
+        // Parsing on this thread also closes the files on it, before the count is taken.
+        final HoldingExecutor executor = new HoldingExecutor(false);
+        final CompletableFuture<BinaryObject> future = new MachO().loadAsync(path, executor);
+        executor.awaitHeld().run();
+        future.get(5, TimeUnit.SECONDS);
+        return openFiles();
+    }
+
+    @Test
+    public void load() throws Exception {
+        final BinaryObject o = new MachO().loadAsync(binary(), pool).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("_main", "_helper"), Arrays.asList(o.symbols().toArray()));
+        final ByteBuffer text = o.getSection("__TEXT", "__text");
+        final byte[] bytes = new byte[text.remaining()];
+        text.get(bytes);
+        assertArrayEquals("code".getBytes(StandardCharsets.US_ASCII), bytes);
+    }
+
+    @Test
+    public void loadWithTimeout() throws Exception {
+        final BinaryObject o = new MachO().loadAsync(binary(), pool, 10, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        assertEquals(2, o.symbols().size());
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        final Throwable e = failure(new MachO().loadAsync(folder.getRoot().toPath().resolve("missing"), pool));
+        assertTrue(e.toString(), e instanceof NoSuchFileException);
+    }
+
+    @Test
+    public void notMachO() throws Exception {
+        final byte[] contents = Arrays.copyOf("#!/bin/sh\n".getBytes(StandardCharsets.US_ASCII), 64);
+        final Throwable e = failure(new MachO().loadAsync(write(contents), pool));
+        assertTrue(e.toString(), e instanceof InvalidObjectException);
+    }
+
+    /**
+     * A header claiming far more load commands than the file holds fails without allocating for them.
+     */
+    @Test
+    public void sizeofcmdsPastEndOfFile() throws Exception {
+        final Bytes header = new Bytes();
+        header.u32(0xfeedfacfL).u32(0x01000007).u32(3).u32(2).u32(1).u32(0x70000000).u32(0).u32(0);
+        final byte[] contents = Arrays.copyOf(header.toByteArray(), 64);
+        final Throwable e = failure(new MachO().loadAsync(write(contents), pool));
+        assertTrue(e.toString(), e instanceof InvalidObjectException);
+    }
+
+    @Test
+    public void cancelClosesFile() throws Exception {
+        final Path path = binary();
+        final long baseline = baseline(path);
+        final HoldingExecutor executor = new HoldingExecutor(false);
+        final CompletableFuture<BinaryObject> future = new MachO().loadAsync(path, executor);
+        final Runnable parse = executor.awaitHeld();
+        assertTrue(openFiles() > baseline);
+
+        // Closing runs on the executor, which runs it at once.
+        assertTrue(future.cancel(true));
+        assertEquals(baseline, openFiles());
+
+        // Parsing that was already scheduled is abandoned.
+        parse.run();
+        assertTrue(future.isCancelled());
+        try {
+            future.join();
+            fail("expected the load to be cancelled");
+        } catch (CancellationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        final Path path = binary();
+        final long baseline = baseline(path);
+        final HoldingExecutor executor = new HoldingExecutor(false);
+        final CompletableFuture<BinaryObject> future = new MachO().loadAsync(path, executor, 50, TimeUnit.MILLISECONDS);
+        final Runnable parse = executor.awaitHeld();
+        final Throwable e = failure(future);
+        assertTrue(e.toString(), e instanceof TimeoutException);
+        awaitOpenFiles(baseline);
+        parse.run();
+        assertTrue(failure(future) instanceof TimeoutException);
+    }
+
+    @Test
+    public void rejectingExecutor() throws Exception {
+        final Path path = binary();
+        final long baseline = baseline(path);
+        final Throwable e = failure(new MachO().loadAsync(path, task -> {
+            throw new RejectedExecutionException();
+        }));
+        assertTrue(e.toString(), e instanceof RejectedExecutionException);
+
+        // The close, rejected by the executor, is run on the common pool instead.
+        awaitOpenFiles(baseline);
+    }
+
+    @Test
+    public void rejectedTimeout() throws Exception {
+        final Path path = binary();
+        final long baseline = baseline(path);
+        final HoldingExecutor executor = new HoldingExecutor(true);
+        final CompletableFuture<BinaryObject> future = new MachO().loadAsync(path, executor, 50, TimeUnit.MILLISECONDS);
+        executor.awaitHeld();
+        final Throwable e = failure(future);
+        assertTrue(e.toString(), e instanceof TimeoutException);
+        awaitOpenFiles(baseline);
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MachOTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BinaryObject load(byte[] contents) throws IOException {
+        return MachOFixture.load(folder.getRoot(), contents);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        final byte[] bytes = new byte[length];
+        for (int x = 0; x < length; x++) {
+            bytes[x] = buffer.get(offset + x);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void getSection() throws IOException {
+        final BinaryObject o = load(new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, bytes("code"))
+                .section("__DATA", "__data", 0x2000, bytes("data!"))
+                .build());
+        final ByteBuffer data = o.getSection("__DATA", "__data");
+        assertEquals("data!", string(data, 0, data.limit()));
+        assertNull(o.getSection("__DATA", "__bss"));
+        assertNull(o.getSection("__TEXT", "__data"));
+    }
+
+    @Test
+    public void sectionOutsideSegment() throws IOException {
+        final MachOFixture fixture = new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, bytes("code"))
+                .section("__DATA", "__data", 0x2000, bytes("data!"));
+        final byte[] contents = fixture.build();
+
+        // Shrink the file range of __DATA so that its section no longer fits.
+        final ByteBuffer b = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+        b.putLong(fixture.segmentCommand("__DATA") + 48, 2);
+        final BinaryObject o = load(contents);
+        assertNull(o.getSection("__DATA", "__data"));
+        assertEquals(4, o.getSection("__TEXT", "__text").limit());
+    }
+
+    @Test
+    public void sectionPastEndOfFile() throws IOException {
+        final MachOFixture fixture = new MachOFixture()
+                .section("__TEXT", "__text", 0x1000, bytes("code"))
+                .section("__DWARF", "__debug_info", 0, new byte[64]);
+        final byte[] contents = fixture.build();
+        final int end = (int)ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN)
+                .getLong(fixture.segmentCommand("__DWARF") + 40);
+        final BinaryObject o = load(Arrays.copyOf(contents, end + 32));
+        assertEquals(4, o.getSection("__TEXT", "__text").limit());
+        try {
+            o.getSection("__DWARF", "__debug_info");
+            fail("expected InvalidObjectException");
+        } catch (InvalidObjectException e) {
+            assertEquals("section __DWARF,__debug_info extends past the end of the file", e.getMessage());
+        }
+    }
+
+    @Test
+    public void strings() throws IOException {
+        final String cstrings = "hello\0\0a string longer than a word\0x\0\u00e9t\u00e9\0\0\0\0\0\0\0\0\0unterminated";
+        final long cstringAddr = 0x100001000L;
+        final long ustringAddr = 0x100002000L;
+        final byte[] ustring = "hi!".getBytes(StandardCharsets.UTF_16LE);
+        final Bytes cfstring = new Bytes();
+        cfstring.u64(0).u64(0x7c8).u64(cstringAddr + cstrings.indexOf('x')).u64(1);
+        // A chained fixup rebase keeps the target in the low 36 bits.
+        cfstring.u64(0).u64(0x7c8).u64(0x8010000000000000L | cstringAddr).u64(5);
+        cfstring.u64(0).u64(0x7d0).u64(ustringAddr).u64(3);
+        final BinaryObject o = load(new MachOFixture()
+                .section("__TEXT", "__cstring", cstringAddr, bytes(cstrings))
+                .section("__TEXT", "__objc_methname", 0x100001800L, bytes("init\0alloc\0"))
+                .section("__TEXT", "__ustring", ustringAddr, ustring)
+                .section("__DATA", "__cfstring", 0x100003000L, cfstring.toByteArray())
+                .build());
+        final List<String> strings = new ArrayList<>();
+        o.strings((source, buffer, offset, length) -> {
+            final byte[] b = new byte[length];
+            for (int x = 0; x < length; x++) {
+                b[x] = buffer.get(offset + x);
+            }
+
+            strings.add(source + ":" + new String(b, source == StringVisitor.Source.CFSTRING_UTF16 ?
+                                                      StandardCharsets.UTF_16LE : StandardCharsets.UTF_8));
+        });
+        assertEquals(Arrays.asList("CSTRING:hello", "CSTRING:a string longer than a word", "CSTRING:x", "CSTRING:\u00e9t\u00e9",
+                                   "CSTRING:unterminated", "OBJC_METHNAME:init", "OBJC_METHNAME:alloc", "CFSTRING:x",
+                                   "CFSTRING:hello", "CFSTRING_UTF16:hi!"), strings);
+    }
+
+    /**
+     * Records the differences reported by a diff, in order.
+     */
+    private static class Recorder implements DiffListener {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void uuidChanged(UUID oldUUID, UUID newUUID) {
+            events.add("uuid " + oldUUID + " " + newUUID);
+        }
+
+        @Override
+        public void dependencyAdded(String name) {
+            events.add("+dependency " + name);
+        }
+
+        @Override
+        public void dependencyRemoved(String name) {
+            events.add("-dependency " + name);
+        }
+
+        @Override
+        public void segmentAdded(String segname, long vmsize) {
+            events.add("+segment " + segname + " " + vmsize);
+        }
+
+        @Override
+        public void segmentRemoved(String segname, long vmsize) {
+            events.add("-segment " + segname + " " + vmsize);
+        }
+
+        @Override
+        public void segmentChanged(String segname, long oldVmsize, long newVmsize) {
+            events.add("~segment " + segname + " " + oldVmsize + " " + newVmsize);
+        }
+
+        @Override
+        public void sectionAdded(String segname, String sectname, long size) {
+            events.add("+section " + segname + "," + sectname + " " + size);
+        }
+
+        @Override
+        public void sectionRemoved(String segname, String sectname, long size) {
+            events.add("-section " + segname + "," + sectname + " " + size);
+        }
+
+        @Override
+        public void sectionChanged(String segname, String sectname, long oldSize, long newSize) {
+            events.add("~section " + segname + "," + sectname + " " + oldSize + " " + newSize);
+        }
+
+        @Override
+        public void symbolAdded(ByteBuffer buffer, int offset, int length) {
+            events.add("+" + string(buffer, offset, length));
+        }
+
+        @Override
+        public void symbolRemoved(ByteBuffer buffer, int offset, int length) {
+            events.add("-" + string(buffer, offset, length));
+        }
+
+    }
+
+    private List<String> diff(MachOFixture oldVersion, MachOFixture newVersion) throws IOException {
+        final Recorder recorder = new Recorder();
+        load(oldVersion.build()).diff(load(newVersion.build()), recorder);
+        return recorder.events;
+    }
+
+    @Test
+    public void diffCommandsAndSections() throws IOException {
+        final List<String> events = diff(
+                new MachOFixture().uuid(1).dylib("/usr/lib/libA.dylib").dylib("/usr/lib/libB.dylib")
+                        .section("__TEXT", "__text", 0x1000, bytes("code"))
+                        .section("__DATA", "__data", 0x2000, bytes("1234"))
+                        .section("__DATA", "__gone", 0x2008, bytes("x"))
+                        .section("__OLD", "__old", 0x3000, bytes("old")),
+                new MachOFixture().uuid(2).dylib("/usr/lib/libB.dylib").dylib("/usr/lib/libC.dylib")
+                        .section("__TEXT", "__text", 0x1000, bytes("code"))
+                        .section("__DATA", "__data", 0x2000, bytes("1235"))
+                        .section("__DATA", "__more", 0x2008, bytes("y"))
+                        .section("__NEW", "__new", 0x3000, bytes("new!")));
+        assertEquals(Arrays.asList("uuid 01010101-0101-0101-0101-010101010101 02020202-0202-0202-0202-020202020202",
+                                   "-dependency /usr/lib/libA.dylib",
+                                   "+dependency /usr/lib/libC.dylib",
+                                   "~segment __DATA 9 9",
+                                   "~section __DATA,__data 4 4",
+                                   "-section __DATA,__gone 1",
+                                   "+section __DATA,__more 1",
+                                   "-segment __OLD 3",
+                                   "+segment __NEW 4"), events);
+    }
+
+    @Test
+    public void diffIdentical() throws IOException {
+        final MachOFixture fixture = new MachOFixture().uuid(1).dylib("/usr/lib/libA.dylib")
+                .section("__TEXT", "__text", 0x1000, bytes("code")).symbol("_main").symbol("_helper");
+        assertEquals(Arrays.asList(), diff(fixture, fixture));
+    }
+
+    /**
+     * The single unnamed segment of an object file holds sections of the same name from different segments.
+     */
+    @Test
+    public void diffObjectSections() throws IOException {
+        final List<String> events = diff(
+                new MachOFixture().object()
+                        .section("__TEXT", "__text", 0, bytes("code"))
+                        .section("__TEXT", "__const", 8, bytes("same"))
+                        .section("__DATA", "__const", 16, bytes("old!")),
+                new MachOFixture().object()
+                        .section("__TEXT", "__text", 0, bytes("code"))
+                        .section("__TEXT", "__const", 8, bytes("same"))
+                        .section("__DATA", "__const", 16, bytes("new!")));
+        assertEquals(Arrays.asList("~segment  20 20", "~section __DATA,__const 4 4"), events);
+    }
+
+    @Test
+    public void diffSymbols() throws IOException {
+        final MachOFixture oldVersion = new MachOFixture().section("__TEXT", "__text", 0x1000, bytes("code"));
+        final MachOFixture newVersion = new MachOFixture().section("__TEXT", "__text", 0x1000, bytes("code"));
+        final TreeSet<String> oldNames = new TreeSet<>();
+        final TreeSet<String> newNames = new TreeSet<>();
+
+        // Enough names for several merge passes, most sharing a prefix longer than two words, so that comparisons have to
+        // look past the first words, with some names prefixes of others and some repeated.
+        final String prefix = "__ZN7example6detail";
+        for (int x = 0; x < 100; x++) {
+            final String name = prefix + Integer.toString(x * 7919 % 1000, 36);
+            if (x % 3 != 0) {
+                oldVersion.symbol(name);
+                oldNames.add(name);
+            }
+
+            if (x % 5 != 0) {
+                newVersion.symbol(name);
+                newNames.add(name);
+            }
+        }
+
+        for (String name : new String[]{"_a", "_main", "_main_helper", "_\u00e9t\u00e9", prefix}) {
+            oldVersion.symbol(name).symbol(name);
+            oldNames.add(name);
+        }
+
+        for (String name : new String[]{"_main", "_main_helper2", "_\u00e9t\u00e9s", prefix, prefix + "0"}) {
+            newVersion.symbol(name);
+            newNames.add(name);
+        }
+
+        // Strings of characters below the surrogates compare like their UTF-8 bytes.
+        final TreeSet<String> all = new TreeSet<>(oldNames);
+        all.addAll(newNames);
+        final List<String> expected = new ArrayList<>();
+        for (String name : all) {
+            if (!newNames.contains(name)) {
+                expected.add("-" + name);
+            } else if (!oldNames.contains(name)) {
+                expected.add("+" + name);
+            }
+        }
+
+        assertTrue(expected.size() > 40);
+        assertEquals(expected, diff(oldVersion, newVersion));
+    }
+
+}
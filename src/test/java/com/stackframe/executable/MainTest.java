@@ -0,0 +1,299 @@
+/*
+    Copyright (C) 2018 StackFrame Technologies, LLC
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License version 2 as published by
+    the Free Software Foundation.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*/
+
+package com.stackframe.executable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.Consumer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MainTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes records on another thread, as a worker does, while this thread drains them.
+     *
+     * @return the output, which must be well-formed UTF-8
+     */
+    private static String encode(Main.Format format, String file, Consumer<Main.Output> records) throws Exception {
+        final Main.Output o = new Main.Output(format, file);
+        final Thread worker = new Thread(() -> {
+            try {
+                records.accept(o);
+            } finally {
+                o.finish();
+            }
+        });
+        worker.start();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        o.writeTo(out);
+        worker.join();
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(out.toByteArray())).toString();
+        } catch (CharacterCodingException e) {
+            throw new AssertionError("the output is not well-formed UTF-8", e);
+        }
+    }
+
+    private static void numbers(Main.Output o) {
+        o.record("symbol");
+        o.field("min", Long.MIN_VALUE);
+        o.field("max", Long.MAX_VALUE);
+        o.field("zero", 0);
+        o.field("negative", -42);
+        o.hexField("hexZero", 0);
+        o.hexField("hexSmall", 0xabc);
+        o.hexField("hexNegative", -1);
+        o.hexField("hexHigh", 0x8000000000000000L);
+        o.field("missing", (String)null);
+        o.end();
+    }
+
+    @Test
+    public void numbersJSON() throws Exception {
+        assertEquals("{\"file\":\"a.out\",\"kind\":\"symbol\",\"min\":-9223372036854775808,\"max\":9223372036854775807," +
+                     "\"zero\":0,\"negative\":-42,\"hexZero\":\"0x0\",\"hexSmall\":\"0xabc\"," +
+                     "\"hexNegative\":\"0xffffffffffffffff\",\"hexHigh\":\"0x8000000000000000\",\"missing\":null}\n",
+                     encode(Main.Format.JSONL, "a.out", MainTest::numbers));
+    }
+
+    @Test
+    public void numbersTSV() throws Exception {
+        assertEquals("a.out\tsymbol\t-9223372036854775808\t9223372036854775807\t0\t-42\t0x0\t0xabc\t0xffffffffffffffff\t" +
+                     "0x8000000000000000\t-\n",
+                     encode(Main.Format.TSV, "a.out", MainTest::numbers));
+    }
+
+    private static void escapes(Main.Output o) {
+        o.record("dependency");
+        o.field("name", "q\"b\\t\tn\nr\r\u0001\u007f\u00e9\u20ac\ud83d\ude00");
+        o.end();
+    }
+
+    @Test
+    public void escapesJSON() throws Exception {
+        assertEquals("{\"file\":\"f\",\"kind\":\"dependency\"," +
+                     "\"name\":\"q\\\"b\\\\t\\u0009n\\u000ar\\u000d\\u0001\u007f\u00e9\u20ac\ud83d\ude00\"}\n",
+                     encode(Main.Format.JSONL, "f", MainTest::escapes));
+    }
+
+    @Test
+    public void escapesTSV() throws Exception {
+        assertEquals("f\tdependency\tq\"b\\\\t\\tn\\nr\\r\u0001\u007f\u00e9\u20ac\ud83d\ude00\n",
+                     encode(Main.Format.TSV, "f", MainTest::escapes));
+    }
+
+    @Test
+    public void unpairedSurrogatesInFileName() throws Exception {
+        final String file = "a\ud800b\udc00c\ud83d\ude00\ud83d";
+        assertEquals("a\ufffdb\ufffdc\ud83d\ude00\ufffd\tcommand\n", encode(Main.Format.TSV, file, o -> {
+            o.record("command");
+            o.end();
+        }));
+        assertEquals("{\"file\":\"a\ufffdb\ufffdc\ud83d\ude00\ufffd\",\"kind\":\"command\"}\n",
+                     encode(Main.Format.JSONL, file, o -> {
+                         o.record("command");
+                         o.end();
+                     }));
+    }
+
+    private static final byte[] UTF8 = {
+        'a',
+        (byte)0xc3, (byte)0xa9, // U+00E9
+        (byte)0xe2, (byte)0x82, (byte)0xac, // U+20AC
+        (byte)0xf0, (byte)0x9f, (byte)0x98, (byte)0x80, // U+1F600
+        (byte)0xf4, (byte)0x8f, (byte)0xbf, (byte)0xbf, // U+10FFFF
+        (byte)0xc0, (byte)0xaf, // overlong '/'
+        (byte)0xe0, (byte)0x80, (byte)0xaf, // overlong '/'
+        (byte)0xed, (byte)0xa0, (byte)0x80, // U+D800
+        (byte)0xf4, (byte)0x90, (byte)0x80, (byte)0x80, // U+110000
+        (byte)0xf5, // never starts a sequence
+        (byte)0x80, // continuation without a start
+        '"', '\t',
+        (byte)0xe2, (byte)0x82 // cut short by the end of the field
+    };
+
+    private static void utf8(Main.Output o) {
+        // The field is a region of a larger buffer.
+        final byte[] bytes = new byte[UTF8.length + 4];
+        Arrays.fill(bytes, (byte)'x');
+        System.arraycopy(UTF8, 0, bytes, 2, UTF8.length);
+        o.record("symbol");
+        o.field("name", ByteBuffer.wrap(bytes), 2, UTF8.length);
+        o.end();
+    }
+
+    @Test
+    public void utf8JSON() throws Exception {
+        assertEquals("{\"file\":\"f\",\"kind\":\"symbol\",\"name\":\"a\u00e9\u20ac\ud83d\ude00\udbff\udfff" +
+                     "\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd\ufffd" +
+                     "\\\"\\u0009\ufffd\ufffd\"}\n",
+                     encode(Main.Format.JSONL, "f", MainTest::utf8));
+    }
+
+    @Test
+    public void utf8TSV() throws Exception {
+        assertEquals("f\tsymbol\ta\u00e9\u20ac\ud83d\ude00\udbff\udfff" +
+                     "\\xc0\\xaf\\xe0\\x80\\xaf\\xed\\xa0\\x80\\xf4\\x90\\x80\\x80\\xf5\\x80\"\\t\\xe2\\x82\n",
+                     encode(Main.Format.TSV, "f", MainTest::utf8));
+    }
+
+    /**
+     * Enough output to fill many chunks, more than the queue holds, so the worker has to wait for the reader.
+     */
+    @Test
+    public void manyChunks() throws Exception {
+        final int count = 200000;
+        final String output = encode(Main.Format.TSV, "f", o -> {
+            for (int x = 0; x < count; x++) {
+                o.record("symbol");
+                o.field("index", x);
+                o.field("name", "a name long enough to take some room");
+                o.end();
+            }
+        });
+        final String[] lines = output.split("\n", -1);
+        assertEquals(count + 1, lines.length);
+        for (int x = 0; x < count; x++) {
+            assertEquals("f\tsymbol\t" + x + "\ta name long enough to take some room", lines[x]);
+        }
+
+        assertEquals("", lines[count]);
+    }
+
+    @Test
+    public void failDropsPartialRecord() throws Exception {
+        assertEquals("f\tcommand\t1\n", encode(Main.Format.TSV, "f", o -> {
+            o.record("command");
+            o.field("index", 1);
+            o.end();
+            o.record("command");
+            o.field("index", 2);
+            o.fail("boom");
+        }));
+    }
+
+    /**
+     * A record that has already been partly queued cannot be taken back, so it is ended where it was cut short.
+     */
+    @Test
+    public void failTerminatesQueuedRecord() throws Exception {
+        final byte[] name = new byte[3 << 20];
+        Arrays.fill(name, (byte)'n');
+        final String output = encode(Main.Format.TSV, "f", o -> {
+            o.record("symbol");
+            o.field("name", ByteBuffer.wrap(name), 0, name.length);
+            o.fail("boom");
+        });
+        assertTrue(output.startsWith("f\tsymbol\tnnn"));
+        assertTrue(output.endsWith("n\n"));
+        assertEquals(output.length() - 1, output.indexOf('\n'));
+    }
+
+    private List<String> files() throws IOException {
+        final List<String> files = new ArrayList<>();
+        for (int x = 0; x < 6; x++) {
+            final MachOFixture fixture = new MachOFixture()
+                    .section("__TEXT", "__text", 0x1000, "code".getBytes(StandardCharsets.US_ASCII))
+                    .dylib("/usr/lib/lib" + x + ".dylib");
+            for (int s = 0; s <= x * 100; s++) {
+                fixture.symbol("_symbol" + x + "_" + s);
+            }
+
+            files.add(MachOFixture.write(folder.getRoot(), fixture.build()).getPath());
+        }
+
+        // Failing files in among the others.
+        files.add(2, new File(folder.getRoot(), "missing").getPath());
+        final File script = folder.newFile("script");
+        Files.write(script.toPath(), "#!/bin/sh\n".getBytes(StandardCharsets.US_ASCII));
+        files.add(5, script.getPath());
+        return files;
+    }
+
+    private static String[] run(List<String> files, int threads, boolean failed) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try (PrintStream e = new PrintStream(err, true, "UTF-8")) {
+            assertEquals(failed, Main.run(files, Main.Format.JSONL, EnumSet.allOf(Main.Listing.class), threads, out, e));
+        }
+
+        return new String[]{new String(out.toByteArray(), StandardCharsets.UTF_8),
+                            new String(err.toByteArray(), StandardCharsets.UTF_8)};
+    }
+
+    @Test
+    public void argumentOrder() throws Exception {
+        final List<String> files = files();
+
+        // Each good file on its own gives the output expected for it in the run of all of them.
+        final StringBuilder expected = new StringBuilder();
+        for (String file : files) {
+            if (!file.endsWith("missing") && !file.endsWith("script")) {
+                final String[] single = run(Arrays.asList(file), 1, false);
+                assertEquals("", single[1]);
+                assertTrue(single[0].startsWith("{\"file\":\"" + file + "\""));
+                expected.append(single[0]);
+            }
+        }
+
+        final String missing = files.get(2);
+        final String script = files.get(5);
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            final String[] all = run(files, threads, true);
+            assertEquals("threads=" + threads, expected.toString(), all[0]);
+            final String[] errors = all[1].split(System.lineSeparator());
+            assertEquals(2, errors.length);
+            assertTrue(errors[0], errors[0].startsWith(missing + ": "));
+            assertEquals(script + ": unsupported format", errors[1]);
+        }
+    }
+
+    @Test
+    public void noFailures() throws Exception {
+        final List<String> files = files();
+        files.remove(5);
+        files.remove(2);
+        final String[] all = run(files, 3, false);
+        assertEquals("", all[1]);
+        assertFalse(all[0].isEmpty());
+    }
+
+}